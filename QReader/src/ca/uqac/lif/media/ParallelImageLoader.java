@@ -0,0 +1,276 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.media;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Outputs images one by one, read from a list of filenames by a pool
+ * of threads. This does the same as the {@link FilenameListIterator},
+ * but the next files are read while the current image is processed,
+ * and each thread keeps one <code>ImageReader</code> per file format
+ * instead of looking up and creating a new one for every file.
+ * <p>
+ * Images are returned in the order of the filenames. At most a fixed
+ * number of files are read in advance, which bounds the memory taken
+ * by the images waiting to be returned. As with the
+ * {@link FilenameListIterator}, null is returned for a file that cannot
+ * be read.
+ * @author sylvain
+ *
+ */
+public class ParallelImageLoader implements Iterator<BufferedImage>
+{
+  /**
+   * Internal iterator over the list of filenames
+   */
+  protected Iterator<String> m_filenames;
+
+  /**
+   * The pool of threads reading the files
+   */
+  protected ExecutorService m_pool;
+
+  /**
+   * The images being read, in the order of the filenames
+   */
+  protected LinkedList<Future<BufferedImage>> m_pending = new LinkedList<Future<BufferedImage>>();
+
+  /**
+   * The maximum number of images read but not yet returned
+   */
+  protected int m_queueDepth;
+
+  /**
+   * The image readers of each thread, indexed by file extension
+   */
+  protected static final ThreadLocal<Map<String, ImageReader>> s_readers = new ThreadLocal<Map<String, ImageReader>>()
+  {
+    @Override
+    protected Map<String, ImageReader> initialValue()
+    {
+      return new HashMap<String, ImageReader>();
+    }
+  };
+
+  /**
+   * Creates a new loader
+   * @param files The names of the files to read
+   * @param threads The number of threads reading files
+   * @param queue_depth The maximum number of images read in advance
+   */
+  public ParallelImageLoader(Collection<String> files, int threads, int queue_depth)
+  {
+    super();
+    m_filenames = files.iterator();
+    m_queueDepth = Math.max(1, queue_depth);
+    m_pool = Executors.newFixedThreadPool(Math.max(1, threads), new LoaderThreadFactory());
+  }
+
+  @Override
+  public boolean hasNext()
+  {
+    fillQueue();
+    return !m_pending.isEmpty();
+  }
+
+  @Override
+  public BufferedImage next()
+  {
+    fillQueue();
+    if (m_pending.isEmpty())
+    {
+      return null;
+    }
+    BufferedImage img = null;
+    try
+    {
+      img = m_pending.removeFirst().get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch (ExecutionException e)
+    {
+      // Reading failed: same as an unreadable file
+      img = null;
+    }
+    fillQueue();
+    return img;
+  }
+
+  @Override
+  public void remove()
+  {
+    // Unsupported
+  }
+
+  /**
+   * Stops the threads reading files
+   */
+  public void shutdown()
+  {
+    for (Future<BufferedImage> f : m_pending)
+    {
+      f.cancel(true);
+    }
+    m_pending.clear();
+    m_pool.shutdownNow();
+  }
+
+  /**
+   * Submits files to the pool until the queue is full or all files
+   * have been submitted
+   */
+  protected void fillQueue()
+  {
+    while (m_pending.size() < m_queueDepth && m_filenames.hasNext())
+    {
+      m_pending.addLast(m_pool.submit(new LoadTask(m_filenames.next())));
+    }
+  }
+
+  /**
+   * Reads an image file with the current thread's reader for its
+   * format
+   * @param filename The name of the file
+   * @return The image, or null if the file could not be read
+   */
+  protected static BufferedImage readImage(String filename)
+  {
+    File file = new File(filename);
+    int dot = filename.lastIndexOf('.');
+    String suffix = dot < 0 ? "" : filename.substring(dot + 1).toLowerCase();
+    Map<String, ImageReader> readers = s_readers.get();
+    ImageReader reader = readers.get(suffix);
+    if (reader == null)
+    {
+      Iterator<ImageReader> it = ImageIO.getImageReadersBySuffix(suffix);
+      if (!it.hasNext())
+      {
+        // Unknown extension: let ImageIO look at the contents
+        return readWithImageIO(file);
+      }
+      reader = it.next();
+      readers.put(suffix, reader);
+    }
+    ImageInputStream in = null;
+    try
+    {
+      in = ImageIO.createImageInputStream(file);
+      if (in == null)
+      {
+        return null;
+      }
+      reader.setInput(in, true, true);
+      return reader.read(0);
+    }
+    catch (IOException e)
+    {
+      // The file may not be in the format its extension says
+      return readWithImageIO(file);
+    }
+    finally
+    {
+      reader.setInput(null);
+      if (in != null)
+      {
+        try
+        {
+          in.close();
+        }
+        catch (IOException e)
+        {
+          // Do nothing
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads an image file with ImageIO's usual lookup of readers
+   * @param file The file
+   * @return The image, or null if the file could not be read
+   */
+  protected static BufferedImage readWithImageIO(File file)
+  {
+    try
+    {
+      return ImageIO.read(file);
+    }
+    catch (IOException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Reads a single file in a thread of the pool
+   */
+  protected static class LoadTask implements Callable<BufferedImage>
+  {
+    protected final String m_filename;
+
+    public LoadTask(String filename)
+    {
+      super();
+      m_filename = filename;
+    }
+
+    @Override
+    public BufferedImage call()
+    {
+      return readImage(m_filename);
+    }
+  }
+
+  /**
+   * Creates daemon threads, so that a loader that is never shut down
+   * does not prevent the program from exiting
+   */
+  protected static class LoaderThreadFactory implements ThreadFactory
+  {
+    protected int m_count = 0;
+
+    @Override
+    public synchronized Thread newThread(Runnable r)
+    {
+      Thread th = new Thread(r, "loader-" + m_count++);
+      th.setDaemon(true);
+      return th;
+    }
+  }
+}
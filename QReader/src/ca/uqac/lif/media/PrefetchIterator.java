@@ -0,0 +1,256 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.media;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Reads images from another iterator in a separate thread, ahead of
+ * the moment they are requested. Reading the next frame of a video
+ * (demultiplexing and decoding packets) or the next image file can
+ * then overlap with the processing of the current image.
+ * <p>
+ * The images read in advance are kept in a queue bounded by their
+ * total size in bytes, since the size of a frame varies widely from
+ * one video to another (a 4K frame in BGR takes 25 MB). The queue may
+ * also be bounded by a number of frames. At least one frame is always
+ * read ahead, even if it is larger than the bound.
+ * <p>
+ * As with the other image sources, a null image marks the end of the
+ * sequence: when the source returns null, no further image is read
+ * from it.
+ * @author sylvain
+ *
+ */
+public class PrefetchIterator implements Iterator<BufferedImage>
+{
+  /**
+   * The iterator images are read from
+   */
+  protected Iterator<BufferedImage> m_source;
+
+  /**
+   * The images read in advance, in the order of the source
+   */
+  protected LinkedList<BufferedImage> m_queue = new LinkedList<BufferedImage>();
+
+  /**
+   * The total size in bytes of the images in the queue
+   */
+  protected long m_queuedBytes = 0;
+
+  /**
+   * The maximum size in bytes of the images in the queue
+   */
+  protected long m_maxBytes;
+
+  /**
+   * The maximum number of images in the queue
+   */
+  protected int m_maxFrames = Integer.MAX_VALUE;
+
+  /**
+   * Whether the source has no more images
+   */
+  protected boolean m_sourceOver = false;
+
+  /**
+   * The thread reading from the source, started on the first request
+   */
+  protected Thread m_thread = null;
+
+  /**
+   * Creates a new prefetching iterator
+   * @param source The iterator to read images from. It is only used by
+   *   the prefetching thread from then on.
+   * @param max_bytes The maximum size in bytes of the images read in
+   *   advance
+   */
+  public PrefetchIterator(Iterator<BufferedImage> source, long max_bytes)
+  {
+    super();
+    m_source = source;
+    m_maxBytes = max_bytes;
+  }
+
+  /**
+   * Sets the maximum number of images read in advance, in addition to
+   * the bound on their size
+   * @param frames The number of images
+   */
+  public synchronized void setMaxFrames(int frames)
+  {
+    m_maxFrames = Math.max(1, frames);
+  }
+
+  @Override
+  public synchronized boolean hasNext()
+  {
+    start();
+    waitForFrame();
+    return !m_queue.isEmpty();
+  }
+
+  @Override
+  public synchronized BufferedImage next()
+  {
+    start();
+    waitForFrame();
+    if (m_queue.isEmpty())
+    {
+      return null;
+    }
+    BufferedImage img = m_queue.removeFirst();
+    m_queuedBytes -= getSize(img);
+    // Room was made for the next frame
+    notifyAll();
+    return img;
+  }
+
+  @Override
+  public void remove()
+  {
+    // Unsupported
+  }
+
+  /**
+   * Stops reading images in advance. The images already in the queue
+   * can still be obtained.
+   */
+  public synchronized void stop()
+  {
+    m_sourceOver = true;
+    if (m_thread != null)
+    {
+      m_thread.interrupt();
+    }
+    notifyAll();
+  }
+
+  /**
+   * Starts the prefetching thread, if it is not started yet
+   */
+  protected void start()
+  {
+    if (m_thread != null)
+    {
+      return;
+    }
+    m_thread = new Thread(new Prefetcher(), "prefetch");
+    m_thread.setDaemon(true);
+    m_thread.start();
+  }
+
+  /**
+   * Waits until the queue contains an image or the source is exhausted.
+   * Must be called while holding the lock on this object.
+   */
+  protected void waitForFrame()
+  {
+    while (m_queue.isEmpty() && !m_sourceOver)
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Adds an image read from the source to the queue, waiting until
+   * there is room for it
+   * @param img The image, or null if the source is exhausted
+   */
+  protected synchronized void put(BufferedImage img) throws InterruptedException
+  {
+    if (img == null)
+    {
+      m_sourceOver = true;
+      notifyAll();
+      return;
+    }
+    long size = getSize(img);
+    while (!m_queue.isEmpty() && (m_queuedBytes + size > m_maxBytes || m_queue.size() >= m_maxFrames))
+    {
+      wait();
+    }
+    m_queue.addLast(img);
+    m_queuedBytes += size;
+    notifyAll();
+  }
+
+  /**
+   * Checks whether the prefetching thread should stop
+   * @return true if the source is exhausted or reading was stopped
+   */
+  protected synchronized boolean isOver()
+  {
+    return m_sourceOver;
+  }
+
+  /**
+   * Computes the number of bytes taken by the pixels of an image
+   * @param img The image
+   * @return The number of bytes
+   */
+  protected static long getSize(BufferedImage img)
+  {
+    DataBuffer buffer = img.getRaster().getDataBuffer();
+    return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+  }
+
+  /**
+   * Reads images from the source until it is exhausted
+   */
+  protected class Prefetcher implements Runnable
+  {
+    @Override
+    public void run()
+    {
+      try
+      {
+        while (!isOver())
+        {
+          BufferedImage img = null;
+          if (m_source.hasNext())
+          {
+            img = m_source.next();
+          }
+          put(img);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        // Reading was stopped
+      }
+      catch (RuntimeException e)
+      {
+        // The source failed: end the sequence here
+        stop();
+      }
+    }
+  }
+}
@@ -0,0 +1,424 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.media;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+
+/**
+ * Reads grayscale frames from a stream of uncompressed video, such as
+ * the output of <code>ffmpeg</code> piped into the program. Two formats
+ * are accepted:
+ * <ul>
+ * <li>Raw 8-bit grayscale (ffmpeg's <code>-f rawvideo -pix_fmt
+ *   gray</code>): frames of a size given in advance, one after the
+ *   other, with nothing in between</li>
+ * <li>YUV4MPEG2 (ffmpeg's <code>-f yuv4mpegpipe</code>, files ending
+ *   in <code>.y4m</code>): the size is read from the header of the
+ *   stream, and only the luminance plane of each frame is kept</li>
+ * </ul>
+ * No image codec and no native library is involved: the pixels are read
+ * from the stream directly into the buffer of a <code>TYPE_BYTE_GRAY</code>
+ * image. As with the {@link VideoLuminanceReader}, these images are
+ * taken from a ring allocated once, and the pixels of a frame are
+ * overwritten after as many frames as there are images in the ring.
+ * <p>
+ * The iteration ends at the end of the stream; an incomplete last frame
+ * is dropped.
+ * @author sylvain
+ *
+ */
+public class RawFrameIterator implements Iterator<BufferedImage>
+{
+  /**
+   * The signature at the start of a YUV4MPEG2 stream
+   */
+  public static final String Y4M_SIGNATURE = "YUV4MPEG2";
+
+  /**
+   * The header at the start of each frame of a YUV4MPEG2 stream
+   */
+  protected static final String Y4M_FRAME = "FRAME";
+
+  /**
+   * The channel frames are read from
+   */
+  protected ReadableByteChannel m_channel;
+
+  /**
+   * The width of the frames
+   */
+  protected int m_width;
+
+  /**
+   * The height of the frames
+   */
+  protected int m_height;
+
+  /**
+   * Whether the stream is in the YUV4MPEG2 format
+   */
+  protected boolean m_y4m = false;
+
+  /**
+   * The number of bytes that follow the luminance plane in each frame,
+   * and that are skipped
+   */
+  protected int m_skipBytes = 0;
+
+  /**
+   * A buffer to read the bytes that are skipped
+   */
+  protected ByteBuffer m_skipBuffer = null;
+
+  /**
+   * A buffer to read the frame headers of a YUV4MPEG2 stream
+   */
+  protected ByteBuffer m_headerBuffer = ByteBuffer.allocate(Y4M_FRAME.length() + 1);
+
+  /**
+   * The images the frames are read into
+   */
+  protected BufferedImage[] m_ring;
+
+  /**
+   * The position in the ring of the next image to fill
+   */
+  protected int m_ringPosition = 0;
+
+  /**
+   * The next frame to return, if already read
+   */
+  protected BufferedImage m_next = null;
+
+  /**
+   * Whether the end of the stream was reached
+   */
+  protected boolean m_over = false;
+
+  /**
+   * Creates an iterator over a stream of raw 8-bit grayscale frames
+   * @param in The stream
+   * @param width The width of the frames
+   * @param height The height of the frames
+   * @param ring_size The number of frames that may be used at the same
+   *   time
+   */
+  public RawFrameIterator(InputStream in, int width, int height, int ring_size)
+  {
+    super();
+    m_channel = getChannel(in);
+    m_width = width;
+    m_height = height;
+    m_ring = new BufferedImage[Math.max(1, ring_size)];
+  }
+
+  /**
+   * Creates an iterator over a YUV4MPEG2 stream. The header of the
+   * stream is read immediately.
+   * @param in The stream
+   * @param ring_size The number of frames that may be used at the same
+   *   time
+   * @throws IOException If the stream does not start with a valid
+   *   YUV4MPEG2 header, or if its frames are not 8 bits per sample
+   */
+  public RawFrameIterator(InputStream in, int ring_size) throws IOException
+  {
+    super();
+    m_channel = getChannel(in);
+    m_y4m = true;
+    m_ring = new BufferedImage[Math.max(1, ring_size)];
+    readY4mHeader();
+  }
+
+  /**
+   * Gets the width of the frames
+   * @return The width
+   */
+  public int getWidth()
+  {
+    return m_width;
+  }
+
+  /**
+   * Gets the height of the frames
+   * @return The height
+   */
+  public int getHeight()
+  {
+    return m_height;
+  }
+
+  @Override
+  public boolean hasNext()
+  {
+    if (m_next == null)
+    {
+      m_next = readFrame();
+    }
+    return m_next != null;
+  }
+
+  @Override
+  public BufferedImage next()
+  {
+    if (m_next == null)
+    {
+      m_next = readFrame();
+    }
+    BufferedImage img = m_next;
+    m_next = null;
+    return img;
+  }
+
+  @Override
+  public void remove()
+  {
+    // Unsupported
+  }
+
+  /**
+   * Reads the next frame into the next image of the ring
+   * @return The image, or null if the end of the stream was reached
+   */
+  protected BufferedImage readFrame()
+  {
+    if (m_over)
+    {
+      return null;
+    }
+    try
+    {
+      if (m_y4m && !readY4mFrameHeader())
+      {
+        m_over = true;
+        return null;
+      }
+      BufferedImage img = m_ring[m_ringPosition];
+      if (img == null)
+      {
+        img = new BufferedImage(m_width, m_height, BufferedImage.TYPE_BYTE_GRAY);
+        m_ring[m_ringPosition] = img;
+      }
+      // The rows of a gray image are contiguous, as in the stream
+      byte[] pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+      if (!readFully(ByteBuffer.wrap(pixels, 0, m_width * m_height)))
+      {
+        m_over = true;
+        return null;
+      }
+      if (m_skipBytes > 0)
+      {
+        m_skipBuffer.clear();
+        if (!readFully(m_skipBuffer))
+        {
+          m_over = true;
+          return null;
+        }
+      }
+      m_ringPosition = (m_ringPosition + 1) % m_ring.length;
+      return img;
+    }
+    catch (IOException e)
+    {
+      m_over = true;
+      return null;
+    }
+  }
+
+  /**
+   * Reads bytes from the channel until a buffer is full
+   * @param buffer The buffer
+   * @return true if the buffer was filled, false if the end of the
+   *   stream was reached before
+   * @throws IOException If reading fails
+   */
+  protected boolean readFully(ByteBuffer buffer) throws IOException
+  {
+    while (buffer.hasRemaining())
+    {
+      if (m_channel.read(buffer) < 0)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads a line of text from the channel, one byte at a time
+   * @param line The characters read so far on the line
+   * @return The line, without the line feed, or null if the end of the
+   *   stream was reached
+   * @throws IOException If reading fails
+   */
+  protected String readLine(StringBuilder line) throws IOException
+  {
+    ByteBuffer one = ByteBuffer.allocate(1);
+    while (true)
+    {
+      one.clear();
+      if (!readFully(one))
+      {
+        return null;
+      }
+      char c = (char) one.get(0);
+      if (c == '\n')
+      {
+        return line.toString();
+      }
+      line.append(c);
+    }
+  }
+
+  /**
+   * Reads the header of a YUV4MPEG2 stream, and sets the size of the
+   * frames and of the chroma planes from it
+   * @throws IOException If the header is invalid
+   */
+  protected void readY4mHeader() throws IOException
+  {
+    String header = readLine(new StringBuilder());
+    if (header == null || !header.startsWith(Y4M_SIGNATURE))
+    {
+      throw new IOException("Not a YUV4MPEG2 stream");
+    }
+    String colour_space = "420";
+    for (String param : header.split(" "))
+    {
+      if (param.isEmpty())
+      {
+        continue;
+      }
+      char tag = param.charAt(0);
+      if (tag == 'W')
+      {
+        m_width = Integer.parseInt(param.substring(1));
+      }
+      else if (tag == 'H')
+      {
+        m_height = Integer.parseInt(param.substring(1));
+      }
+      else if (tag == 'C')
+      {
+        colour_space = param.substring(1);
+      }
+    }
+    if (m_width <= 0 || m_height <= 0)
+    {
+      throw new IOException("Missing frame size in YUV4MPEG2 header");
+    }
+    if (colour_space.matches(".*p[0-9]+"))
+    {
+      // C420p10, C444p16, etc.
+      throw new IOException("Unsupported YUV4MPEG2 colour space " + colour_space + ": only 8 bits per sample are supported");
+    }
+    m_skipBytes = getChromaSize(colour_space, m_width, m_height);
+    if (m_skipBytes > 0)
+    {
+      m_skipBuffer = ByteBuffer.allocate(m_skipBytes);
+    }
+  }
+
+  /**
+   * Reads the header of a frame in a YUV4MPEG2 stream
+   * @return true if a frame follows, false if the end of the stream
+   *   was reached
+   * @throws IOException If the header is invalid
+   */
+  protected boolean readY4mFrameHeader() throws IOException
+  {
+    // Most frame headers are exactly "FRAME\n"; read them in one go
+    m_headerBuffer.clear();
+    if (!readFully(m_headerBuffer))
+    {
+      return false;
+    }
+    String start = new String(m_headerBuffer.array(), 0, Y4M_FRAME.length(), "US-ASCII");
+    if (!start.equals(Y4M_FRAME))
+    {
+      throw new IOException("Invalid YUV4MPEG2 frame header");
+    }
+    if (m_headerBuffer.get(Y4M_FRAME.length()) != '\n')
+    {
+      // The header has parameters, which are ignored
+      return readLine(new StringBuilder()) != null;
+    }
+    return true;
+  }
+
+  /**
+   * Computes the number of bytes of the chroma planes of a frame
+   * @param colour_space The colour space, as given in a YUV4MPEG2 header
+   *   (without the leading "C")
+   * @param width The width of the frame
+   * @param height The height of the frame
+   * @return The number of bytes
+   * @throws IOException If the colour space is not supported
+   */
+  protected static int getChromaSize(String colour_space, int width, int height) throws IOException
+  {
+    if (colour_space.startsWith("mono"))
+    {
+      return 0;
+    }
+    if (colour_space.startsWith("420"))
+    {
+      return 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+    if (colour_space.startsWith("422"))
+    {
+      return 2 * ((width + 1) / 2) * height;
+    }
+    if (colour_space.startsWith("411"))
+    {
+      return 2 * ((width + 3) / 4) * height;
+    }
+    if (colour_space.equals("444alpha"))
+    {
+      return 3 * width * height;
+    }
+    if (colour_space.startsWith("444"))
+    {
+      return 2 * width * height;
+    }
+    throw new IOException("Unsupported YUV4MPEG2 colour space " + colour_space);
+  }
+
+  /**
+   * Gets a channel to read a stream. The channel of a file (or named
+   * pipe) is used directly when there is one.
+   * @param in The stream
+   * @return The channel
+   */
+  protected static ReadableByteChannel getChannel(InputStream in)
+  {
+    if (in instanceof FileInputStream)
+    {
+      return ((FileInputStream) in).getChannel();
+    }
+    return Channels.newChannel(in);
+  }
+}
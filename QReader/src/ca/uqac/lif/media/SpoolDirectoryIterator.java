@@ -0,0 +1,505 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.media;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Outputs images one by one, as they are written into a directory.
+ * This is meant for capture programs that save each frame as an image
+ * file in a spool directory: frames can be decoded while the capture
+ * is still going on, instead of waiting for it to end.
+ * <p>
+ * The files already in the directory are read first; new files are
+ * then detected with a <code>WatchService</code>. Files are read in the
+ * order of their names, which is the order in which they are written
+ * by programs that number their frames. Numbers in names are compared
+ * by value, so that <code>frame9.png</code> comes before
+ * <code>frame10.png</code> whether numbers are zero-padded or not. A
+ * file that appears after a file that comes later in this order has
+ * been read is ignored, and a warning is printed. A file is only read once it
+ * is complete, that is, once a file that comes after it has appeared,
+ * or once it has not been modified for a short while. Files whose name
+ * starts with a dot, or that do not have the extension of an image
+ * format, are ignored.
+ * <p>
+ * Iteration ends when {@link #stop()} is called, or when no new file has
+ * appeared for some time. Processed files can be deleted or moved to
+ * another directory.
+ * @author sylvain
+ *
+ */
+public class SpoolDirectoryIterator implements Iterator<BufferedImage>
+{
+  /**
+   * The order in which files are read
+   */
+  public static final Comparator<String> NAME_ORDER = new NameComparator();
+
+  /**
+   * The directory being watched
+   */
+  protected File m_directory;
+
+  /**
+   * The service notifying the creation of files in the directory
+   */
+  protected WatchService m_watcher = null;
+
+  /**
+   * The names of the files found and not yet read, in reading order
+   */
+  protected TreeSet<String> m_waiting = new TreeSet<String>(NAME_ORDER);
+
+  /**
+   * The name of the last file read; files that come before it are
+   * ignored
+   */
+  protected String m_lastRead = null;
+
+  /**
+   * The time, in milliseconds, after which a file that has not been
+   * modified is considered complete
+   */
+  protected long m_settleTime = 500;
+
+  /**
+   * The time, in milliseconds, after which iteration ends if no new
+   * file has appeared
+   */
+  protected long m_idleTimeout = 30000;
+
+  /**
+   * The system time when the last file was found
+   */
+  protected long m_lastActivity;
+
+  /**
+   * The directory processed files are moved to, if any
+   */
+  protected File m_archive = null;
+
+  /**
+   * Whether to delete processed files
+   */
+  protected boolean m_deleteProcessed = false;
+
+  /**
+   * Whether iteration was stopped
+   */
+  protected volatile boolean m_stopped = false;
+
+  /**
+   * The next image to return, if already read
+   */
+  protected BufferedImage m_next = null;
+
+  /**
+   * The number of files read so far
+   */
+  protected int m_fileCount = 0;
+
+  /**
+   * Creates an iterator over the images written into a directory
+   * @param directory The directory
+   * @throws IOException If the directory cannot be watched
+   */
+  public SpoolDirectoryIterator(File directory) throws IOException
+  {
+    super();
+    m_directory = directory;
+    m_watcher = FileSystems.getDefault().newWatchService();
+    // Register before listing, so that no file is missed in between
+    directory.toPath().register(m_watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    String[] existing = directory.list();
+    if (existing != null)
+    {
+      for (String name : existing)
+      {
+        addFile(name, false);
+      }
+    }
+    m_lastActivity = System.currentTimeMillis();
+  }
+
+  /**
+   * Sets the time after which iteration ends if no new file appears
+   * @param timeout The time, in milliseconds
+   */
+  public void setIdleTimeout(long timeout)
+  {
+    m_idleTimeout = timeout;
+  }
+
+  /**
+   * Sets the time after which a file that has not been modified is
+   * considered complete. This only matters for the last file written;
+   * other files are read as soon as a later file appears.
+   * @param time The time, in milliseconds
+   */
+  public void setSettleTime(long time)
+  {
+    m_settleTime = time;
+  }
+
+  /**
+   * Sets the directory processed files are moved to
+   * @param directory The directory, or null to leave files in place
+   */
+  public void setArchiveDirectory(File directory)
+  {
+    m_archive = directory;
+  }
+
+  /**
+   * Sets whether to delete files once they have been read
+   * @param b Set to true to delete files
+   */
+  public void setDeleteProcessed(boolean b)
+  {
+    m_deleteProcessed = b;
+  }
+
+  /**
+   * Gets the number of files read so far
+   * @return The number of files
+   */
+  public int getFileCount()
+  {
+    return m_fileCount;
+  }
+
+  /**
+   * Ends the iteration. Files that were not read yet are left in the
+   * directory.
+   */
+  public void stop()
+  {
+    m_stopped = true;
+    try
+    {
+      m_watcher.close();
+    }
+    catch (IOException e)
+    {
+      // Do nothing
+    }
+  }
+
+  @Override
+  public boolean hasNext()
+  {
+    if (m_next == null)
+    {
+      m_next = readNext();
+    }
+    return m_next != null;
+  }
+
+  @Override
+  public BufferedImage next()
+  {
+    if (m_next == null)
+    {
+      m_next = readNext();
+    }
+    BufferedImage img = m_next;
+    m_next = null;
+    return img;
+  }
+
+  @Override
+  public void remove()
+  {
+    // Unsupported
+  }
+
+  /**
+   * Waits for the next complete file and reads it
+   * @return The image, or null if iteration is over
+   */
+  protected BufferedImage readNext()
+  {
+    while (!m_stopped)
+    {
+      String name = nextReadyFile();
+      if (name != null)
+      {
+        m_waiting.remove(name);
+        File file = new File(m_directory, name);
+        BufferedImage img = null;
+        try
+        {
+          img = ImageIO.read(file);
+        }
+        catch (IOException e)
+        {
+          // Unreadable file: skip it
+        }
+        m_lastRead = name;
+        processed(file);
+        if (img != null)
+        {
+          m_fileCount++;
+          return img;
+        }
+        continue;
+      }
+      if (System.currentTimeMillis() - m_lastActivity > m_idleTimeout)
+      {
+        // The capture seems to be over
+        return null;
+      }
+      waitForFiles();
+    }
+    return null;
+  }
+
+  /**
+   * Finds the first waiting file that is complete
+   * @return The name of the file, or null if there is none
+   */
+  protected String nextReadyFile()
+  {
+    if (m_waiting.isEmpty())
+    {
+      return null;
+    }
+    String first = m_waiting.first();
+    if (m_waiting.size() > 1)
+    {
+      // A later file was started, so this one is finished
+      return first;
+    }
+    File file = new File(m_directory, first);
+    if (!file.exists())
+    {
+      m_waiting.remove(first);
+      return null;
+    }
+    if (System.currentTimeMillis() - file.lastModified() >= m_settleTime)
+    {
+      return first;
+    }
+    return null;
+  }
+
+  /**
+   * Waits until new files appear in the directory, or for a short while
+   * if a file is waiting to be complete
+   */
+  protected void waitForFiles()
+  {
+    WatchKey key = null;
+    try
+    {
+      key = m_watcher.poll(Math.max(10, m_settleTime / 2), TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      m_stopped = true;
+      return;
+    }
+    catch (RuntimeException e)
+    {
+      // The watcher was closed by stop()
+      m_stopped = true;
+      return;
+    }
+    if (key == null)
+    {
+      return;
+    }
+    for (java.nio.file.WatchEvent<?> event : key.pollEvents())
+    {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+      {
+        // Some events were lost: look at the whole directory again
+        String[] names = m_directory.list();
+        if (names != null)
+        {
+          for (String name : names)
+          {
+            addFile(name, false);
+          }
+        }
+        continue;
+      }
+      Path path = (Path) event.context();
+      addFile(path.getFileName().toString(), event.kind() == StandardWatchEventKinds.ENTRY_CREATE);
+    }
+    key.reset();
+  }
+
+  /**
+   * Adds a file to the files waiting to be read, if it is an image that
+   * was not read already
+   * @param name The name of the file
+   * @param created Whether the file was just created, rather than found
+   *   in a listing of the directory or modified
+   */
+  protected void addFile(String name, boolean created)
+  {
+    if (name.startsWith(".") || !isImageFile(name))
+    {
+      return;
+    }
+    if (m_lastRead != null && NAME_ORDER.compare(name, m_lastRead) <= 0)
+    {
+      // Already read, or written out of order
+      if (created)
+      {
+        System.err.println("WARNING: ignoring " + name + ", which appeared after " + m_lastRead + " was read");
+      }
+      return;
+    }
+    if (m_waiting.add(name))
+    {
+      m_lastActivity = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Deletes or archives a file once it has been read
+   * @param file The file
+   */
+  protected void processed(File file)
+  {
+    if (m_archive != null)
+    {
+      try
+      {
+        Files.move(file.toPath(), new File(m_archive, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      catch (IOException e)
+      {
+        // Leave the file where it is
+      }
+    }
+    else if (m_deleteProcessed)
+    {
+      file.delete();
+    }
+  }
+
+  /**
+   * Compares file names so that numbers in them are ordered by value.
+   * Names are compared character by character, except for runs of
+   * digits, which are compared as numbers; when two numbers are equal,
+   * the one with fewer leading zeros comes first, so that different
+   * names are never equal.
+   */
+  protected static class NameComparator implements Comparator<String>
+  {
+    @Override
+    public int compare(String s1, String s2)
+    {
+      int i1 = 0, i2 = 0;
+      int zeros = 0;
+      while (i1 < s1.length() && i2 < s2.length())
+      {
+        char c1 = s1.charAt(i1);
+        char c2 = s2.charAt(i2);
+        if (!Character.isDigit(c1) || !Character.isDigit(c2))
+        {
+          if (c1 != c2)
+          {
+            return c1 - c2;
+          }
+          i1++;
+          i2++;
+          continue;
+        }
+        // Skip leading zeros, then compare the lengths of the numbers
+        // and, for numbers of the same length, their digits
+        int start1 = i1, start2 = i2;
+        while (i1 < s1.length() && s1.charAt(i1) == '0')
+        {
+          i1++;
+        }
+        while (i2 < s2.length() && s2.charAt(i2) == '0')
+        {
+          i2++;
+        }
+        if (zeros == 0)
+        {
+          zeros = (i1 - start1) - (i2 - start2);
+        }
+        int end1 = i1, end2 = i2;
+        while (end1 < s1.length() && Character.isDigit(s1.charAt(end1)))
+        {
+          end1++;
+        }
+        while (end2 < s2.length() && Character.isDigit(s2.charAt(end2)))
+        {
+          end2++;
+        }
+        if (end1 - i1 != end2 - i2)
+        {
+          return (end1 - i1) - (end2 - i2);
+        }
+        while (i1 < end1)
+        {
+          if (s1.charAt(i1) != s2.charAt(i2))
+          {
+            return s1.charAt(i1) - s2.charAt(i2);
+          }
+          i1++;
+          i2++;
+        }
+      }
+      if (s1.length() - i1 != s2.length() - i2)
+      {
+        return (s1.length() - i1) - (s2.length() - i2);
+      }
+      return zeros;
+    }
+  }
+
+  /**
+   * Checks whether a file name has the extension of an image format
+   * that can be read
+   * @param name The file name
+   * @return true if the file is an image
+   */
+  protected static boolean isImageFile(String name)
+  {
+    int dot = name.lastIndexOf('.');
+    if (dot < 0)
+    {
+      return false;
+    }
+    return ImageIO.getImageReadersBySuffix(name.substring(dot + 1).toLowerCase()).hasNext();
+  }
+}
@@ -63,6 +63,16 @@ public class VideoFrameReader extends MediaListenerAdapter
    */
   protected long m_duration = 0;
   
+  /**
+   * The container of the video file
+   */
+  protected IContainer m_container = null;
+  
+  /**
+   * The time stamp of the last frame decoded, in microseconds
+   */
+  protected long m_frameTimestamp = 0;
+  
   public VideoFrameReader(String videoFile)
   {
     this(videoFile, BufferedImage.TYPE_3BYTE_BGR);
@@ -77,6 +87,7 @@ public class VideoFrameReader extends MediaListenerAdapter
     {
       m_duration = container.getDuration();
     }
+    m_container = container;
     // Create a media reader for processing video
     m_reader = ToolFactory.makeReader(container);
 
@@ -112,6 +123,40 @@ public class VideoFrameReader extends MediaListenerAdapter
     return (int)((m_duration * (long) fps) / 1000);
   }
 
+  /**
+   * Gets the duration of the video, as given by its container
+   * @return The duration, in microseconds; 0 or less if unknown
+   */
+  public long getDuration()
+  {
+    return m_container.getDuration();
+  }
+  
+  /**
+   * Gets the time stamp of the last frame returned by
+   * {@link #nextFrame()}
+   * @return The time stamp, in microseconds from the start of the video
+   */
+  public long getFrameTimestamp()
+  {
+    return m_frameTimestamp;
+  }
+  
+  /**
+   * Moves to the last key frame at or before some point in the video.
+   * Since frames can only be decoded from a key frame, the next frames
+   * returned may come before the requested position; callers can skip
+   * them by looking at {@link #getFrameTimestamp()}.
+   * @param timestamp The position, in microseconds from the start of
+   *   the video
+   * @return true if the seek succeeded, false otherwise
+   */
+  public boolean seek(long timestamp)
+  {
+    // With no stream index, time stamps are in microseconds
+    return m_container.seekKeyFrame(-1, 0, timestamp, timestamp, IContainer.SEEK_FLAG_BACKWARDS) >= 0;
+  }
+  
   /**
    * Reads the next frame of the video.
    * @return The next decoded frame in the video, or null if decoding
@@ -149,6 +194,48 @@ public class VideoFrameReader extends MediaListenerAdapter
     return null;
   }
 
+  /**
+   * Checks whether a decoded picture belongs to the video stream being
+   * read. The first stream that produces a picture is the one that is
+   * read.
+   * @param event The event of the decoded picture
+   * @return true if the picture should be read, false otherwise
+   */
+  protected boolean selectStream(IVideoPictureEvent event)
+  {
+    // if the stream index does not match the selected stream index,
+    // then have a closer look
+    if (event.getStreamIndex() != m_videoStreamIndex)
+    {
+      // if the selected video stream id is not yet set, go ahead an
+      // select this lucky video stream
+      if (-1 == m_videoStreamIndex)
+        m_videoStreamIndex = event.getStreamIndex();
+
+      // otherwise return, no need to show frames from this video stream
+      else
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the time stamp of a decoded picture
+   * @param event The event of the decoded picture
+   * @return The time stamp, in microseconds
+   */
+  protected static long getTimestamp(IVideoPictureEvent event)
+  {
+    Long timestamp = event.getTimeStamp();
+    if (timestamp == null)
+    {
+      return 0;
+    }
+    return timestamp;
+  }
+
   /** 
    * Called after a video frame has been decoded from a media stream.
    * Optionally a BufferedImage version of the frame may be passed
@@ -162,22 +249,12 @@ public class VideoFrameReader extends MediaListenerAdapter
   {
     try
     {
-      // if the stream index does not match the selected stream index,
-      // then have a closer look
-      if (event.getStreamIndex() != m_videoStreamIndex)
+      if (!selectStream(event))
       {
-        // if the selected video stream id is not yet set, go ahead an
-        // select this lucky video stream
-        if (-1 == m_videoStreamIndex)
-          m_videoStreamIndex = event.getStreamIndex();
-
-        // otherwise return, no need to show frames from this video stream
-        else
-        {
-          return;
-        }
+        return;
       }
       // Tell the main loop that we have read a frame
+      m_frameTimestamp = getTimestamp(event);
       m_frame = event.getImage();
       m_frameRead = true;
       //ImageIO.write(event.getImage(), "jpg", new File(saveFile));
@@ -0,0 +1,177 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.media;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+
+import com.xuggle.mediatool.event.IVideoPictureEvent;
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IVideoPicture;
+import com.xuggle.xuggler.video.ConverterFactory;
+import com.xuggle.xuggler.video.IConverter;
+
+/**
+ * Reads the frames of a video as grayscale images, taken directly from
+ * the luminance plane of the decoded pictures. Video codecs decode
+ * pictures in a YUV format whose first plane already holds the
+ * brightness of each pixel; copying this plane avoids converting every
+ * picture to BGR, only to have the code reader convert it back to gray.
+ * <p>
+ * The frames are <code>TYPE_BYTE_GRAY</code> images taken from a ring
+ * of images allocated once; the pixels of a frame are hence overwritten
+ * after as many frames as there are images in the ring. The ring must
+ * be large enough to hold all the frames that are being decoded at the
+ * same time.
+ * <p>
+ * The values are those of the video's luminance plane, which for most
+ * videos spans the range 16-235 rather than 0-255. Pictures in a format
+ * that is not planar YUV are converted to BGR as usual.
+ * @author sylvain
+ *
+ */
+public class VideoLuminanceReader extends VideoFrameReader
+{
+  /**
+   * The images the frames are copied into
+   */
+  protected BufferedImage[] m_ring;
+
+  /**
+   * The position in the ring of the next image to fill
+   */
+  protected int m_ringPosition = 0;
+
+  /**
+   * The converter used for pictures that are not in a planar YUV
+   * format, if any
+   */
+  protected IConverter m_converter = null;
+
+  /**
+   * Creates a reader for a video
+   * @param videoFile The name of the video file
+   * @param ring_size The number of frames that may be used at the same
+   *   time
+   */
+  public VideoLuminanceReader(String videoFile, int ring_size)
+  {
+    // No BufferedImage is created by Xuggle
+    super(videoFile, -1);
+    m_ring = new BufferedImage[Math.max(1, ring_size)];
+  }
+
+  @Override
+  public void onVideoPicture(IVideoPictureEvent event)
+  {
+    try
+    {
+      if (!selectStream(event))
+      {
+        return;
+      }
+      m_frameTimestamp = getTimestamp(event);
+      IVideoPicture picture = event.getPicture();
+      if (isPlanarYuv(picture.getPixelType()))
+      {
+        m_frame = copyLuminance(picture);
+      }
+      else
+      {
+        if (m_converter == null)
+        {
+          m_converter = ConverterFactory.createConverter(ConverterFactory.XUGGLER_BGR_24, picture);
+        }
+        m_frame = m_converter.toImage(picture);
+      }
+      m_frameRead = true;
+    }
+    catch (Exception e)
+    {
+      // Do nothing
+    }
+  }
+
+  /**
+   * Copies the luminance plane of a picture into the next image of the
+   * ring
+   * @param picture The picture
+   * @return The image
+   */
+  protected BufferedImage copyLuminance(IVideoPicture picture)
+  {
+    int width = picture.getWidth();
+    int height = picture.getHeight();
+    BufferedImage img = m_ring[m_ringPosition];
+    if (img == null || img.getWidth() != width || img.getHeight() != height)
+    {
+      img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+      m_ring[m_ringPosition] = img;
+    }
+    m_ringPosition = (m_ringPosition + 1) % m_ring.length;
+    byte[] pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+    // Rows of the plane may be padded beyond the width of the picture
+    int line_size = picture.getDataLineSize(0);
+    ByteBuffer plane = picture.getData().getByteBuffer(0, line_size * height);
+    if (line_size == width)
+    {
+      plane.get(pixels, 0, width * height);
+    }
+    else
+    {
+      for (int y = 0; y < height; y++)
+      {
+        plane.position(y * line_size);
+        plane.get(pixels, y * width, width);
+      }
+    }
+    return img;
+  }
+
+  /**
+   * Checks whether the first plane of pictures in a given format holds
+   * their luminance
+   * @param type The pixel format
+   * @return true if the format is planar YUV or gray
+   */
+  protected static boolean isPlanarYuv(IPixelFormat.Type type)
+  {
+    if (type == null)
+    {
+      return false;
+    }
+    switch (type)
+    {
+    case YUV420P:
+    case YUVJ420P:
+    case YUV422P:
+    case YUVJ422P:
+    case YUV444P:
+    case YUVJ444P:
+    case YUV440P:
+    case YUVJ440P:
+    case YUV410P:
+    case YUV411P:
+    case GRAY8:
+      return true;
+    default:
+      return false;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.media;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Outputs the frames of a video whose time stamp lies in a given
+ * interval. The reader first seeks to the key frame preceding the
+ * start of the interval; the frames decoded before the start are
+ * skipped. Since a frame belongs to an interval only if its time
+ * stamp is at least the start and less than the end, splitting a video
+ * into consecutive intervals gives every frame exactly once.
+ * @author sylvain
+ *
+ */
+public class VideoShardIterator extends VideoFrameIterator
+{
+  /**
+   * The start of the interval, in microseconds
+   */
+  protected long m_start;
+
+  /**
+   * The end of the interval (excluded), in microseconds
+   */
+  protected long m_end;
+
+  /**
+   * Whether the reader was moved to the start of the interval
+   */
+  protected boolean m_started = false;
+
+  /**
+   * Creates an iterator over a part of a video
+   * @param reader The reader of the video. It must not have read any
+   *   frame yet.
+   * @param start The start of the interval, in microseconds
+   * @param end The end of the interval (excluded), in microseconds; use
+   *   <code>Long.MAX_VALUE</code> to read until the end of the video
+   */
+  public VideoShardIterator(VideoFrameReader reader, long start, long end)
+  {
+    super(reader);
+    m_start = start;
+    m_end = end;
+  }
+
+  @Override
+  public BufferedImage next()
+  {
+    if (!m_started)
+    {
+      m_started = true;
+      if (m_start > 0)
+      {
+        // If seeking fails, the frames before the start are simply
+        // decoded and skipped
+        m_reader.seek(m_start);
+      }
+    }
+    while (m_isNotOver)
+    {
+      BufferedImage out = super.next();
+      if (out == null)
+      {
+        return null;
+      }
+      long timestamp = m_reader.getFrameTimestamp();
+      if (timestamp >= m_end)
+      {
+        // This frame belongs to the next interval
+        m_isNotOver = false;
+        return null;
+      }
+      if (timestamp >= m_start)
+      {
+        return out;
+      }
+    }
+    return null;
+  }
+}
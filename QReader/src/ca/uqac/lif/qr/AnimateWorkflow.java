@@ -41,6 +41,8 @@ public class AnimateWorkflow extends FrontEnd
   {
     // Default values for parameters
     int frame_rate = 10;
+    int grid_size = 1;
+    int render_ahead = 0;
     String output_filename = "", input_filename = "";
 
     // Instantiate animator, reader, etc.
@@ -106,6 +108,24 @@ public class AnimateWorkflow extends FrontEnd
     {
       frame_rate = Integer.parseInt(c_line.getOptionValue("framerate"));
     }
+    if (c_line.hasOption("grid"))
+    {
+      grid_size = Integer.parseInt(c_line.getOptionValue("grid"));
+      if (grid_size < 1)
+      {
+        System.err.println("ERROR: grid size must be at least 1.");
+        return FrontEnd.ERR_ARGUMENTS;
+      }
+    }
+    if (c_line.hasOption("renderahead"))
+    {
+      render_ahead = Integer.parseInt(c_line.getOptionValue("renderahead"));
+      if (render_ahead < 0)
+      {
+        System.err.println("ERROR: number of frames rendered ahead cannot be negative.");
+        return FrontEnd.ERR_ARGUMENTS;
+      }
+    }
     if (c_line.hasOption("resourceid"))
     {
       String resource_identifier = c_line.getOptionValue("resourceid");
@@ -217,6 +237,8 @@ public class AnimateWorkflow extends FrontEnd
       CodeWindowUpdater wu = new CodeWindowUpdater(encoder, reader_writer, 1000/frame_rate);
       CodeDisplayFrame window = new CodeDisplayFrame(wu);
       wu.setWindow(window);
+      wu.setGridSize(grid_size);
+      wu.setRenderAhead(render_ahead);
       wu.setStartState(LoopStatus.SUSPENDED);
       window.setVisible(true);
       Thread th = new Thread(wu);
@@ -230,14 +252,29 @@ public class AnimateWorkflow extends FrontEnd
     {
       // We output the codes into a GIF file
       GifAnimator animator = new GifAnimator();
-      BitSequence bs = null;
-      do
+      if (grid_size > 1)
+      {
+        // Each image of the animation shows a grid of codes
+        List<String> frames = encoder.pollNextFrames(grid_size * grid_size);
+        while (frames != null)
+        {
+          BufferedImage img = reader_writer.getCodeGrid(frames, grid_size);
+          animator.addImage(img);
+          encoder.printStatsInterval();
+          frames = encoder.pollNextFrames(grid_size * grid_size);
+        }
+      }
+      else
       {
-        bs = encoder.pollNextFrame();
-        BufferedImage img = reader_writer.getCode(bs.toBase64());
-        animator.addImage(img);
-        encoder.printStatsInterval();
-      } while (bs != null);
+        BitSequence bs = null;
+        do
+        {
+          bs = encoder.pollNextFrame();
+          BufferedImage img = reader_writer.getCode(bs.toBase64());
+          animator.addImage(img);
+          encoder.printStatsInterval();
+        } while (bs != null);
+      }
       animator.getAnimation(100 / frame_rate, output_filename);
     }
     // Done!
@@ -279,6 +316,22 @@ public class AnimateWorkflow extends FrontEnd
             "Set maximum frame size to x bits (default: 2000)")
             .create("z");
     options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("grid")
+        .withArgName("n")
+        .hasArg()
+        .withDescription(
+            "Show n x n codes in each frame (default: 1)")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("renderahead")
+        .withArgName("x")
+        .hasArg()
+        .withDescription(
+            "When showing codes in a window, render up to x frames in advance")
+            .create();
+    options.addOption(opt);
     opt = OptionBuilder
         .withLongOpt("noloop")
         .withDescription(
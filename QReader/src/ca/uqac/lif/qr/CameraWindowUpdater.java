@@ -1,16 +1,31 @@
 package ca.uqac.lif.qr;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.ByteArrayInputStream;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.imageio.ImageIO;
+import javax.swing.Timer;
 
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfByte;
 import org.opencv.highgui.Highgui;
 import org.opencv.highgui.VideoCapture;
+import org.opencv.imgproc.Imgproc;
+
+import ca.uqac.lif.util.StoppableRunnable;
 
 public class CameraWindowUpdater extends WindowUpdater
 {
@@ -22,6 +37,157 @@ public class CameraWindowUpdater extends WindowUpdater
   
   protected FrameDecoder m_decoder;
   
+  /**
+   * The detector used to skip frames that repeat the last decoded one,
+   * if any
+   */
+  protected DuplicateFrameDetector m_detector = null;
+  
+  /**
+   * The number of codes in each frame
+   */
+  protected int m_codesPerFrame = 1;
+  
+  /**
+   * Whether to capture frames in a separate thread, and only decode the
+   * most recent one
+   */
+  protected boolean m_shedFrames = false;
+  
+  /**
+   * The thread capturing frames from the camera, when frames are shed
+   */
+  protected FrameGrabber m_grabber = null;
+  
+  /**
+   * Whether to convert frames to gray with OpenCV and copy them into
+   * reused images, instead of encoding them as BMP files for ImageIO
+   */
+  protected boolean m_grayCapture = false;
+  
+  /**
+   * The frame the camera is read into, reused from one frame to the
+   * next
+   */
+  protected Mat m_frame = null;
+  
+  /**
+   * The gray version of the current frame, reused from one frame to
+   * the next
+   */
+  protected Mat m_grayFrame = null;
+  
+  /**
+   * The images gray frames are copied into. There are two, so that the
+   * window can still paint one while the next is filled.
+   */
+  protected BufferedImage[] m_grayImages = new BufferedImage[2];
+  
+  /**
+   * The position of the next image to fill in the array of gray images
+   */
+  protected int m_grayPosition = 0;
+  
+  /**
+   * The default interval between two refreshes of the window when
+   * stages run in separate threads, in milliseconds
+   */
+  public static final int DEFAULT_DISPLAY_INTERVAL = 66;
+  
+  /**
+   * The number of threads decoding frames when stages run in separate
+   * threads, or 0 to run all stages in the updater's thread
+   */
+  protected int m_decodeThreads = 0;
+  
+  /**
+   * The interval between two refreshes of the window when stages run
+   * in separate threads, in milliseconds
+   */
+  protected int m_displayInterval = DEFAULT_DISPLAY_INTERVAL;
+  
+  /**
+   * The frames no longer used by any stage, which the capture stage
+   * fills with new captures. Frames, and their images, are only given
+   * back once the window no longer shows them, so that no stage ever
+   * sees the image of a frame overwritten by a later capture.
+   */
+  protected BlockingQueue<CapturedFrame> m_freeFrames = null;
+  
+  /**
+   * The maximum number of frames waiting to be decoded
+   */
+  protected int m_captureCapacity = 0;
+  
+  /**
+   * The frames captured and waiting to be decoded
+   */
+  protected BlockingQueue<CapturedFrame> m_captured = null;
+  
+  /**
+   * The frames decoded and waiting to be passed to the decoder, in the
+   * order they finished
+   */
+  protected BlockingQueue<CapturedFrame> m_decoded = null;
+  
+  /**
+   * The frames decoded ahead of one that is not finished yet, indexed
+   * by their position in the sequence of frames. Its size is bounded by
+   * the number of frames of the pipeline.
+   */
+  protected TreeMap<Long, CapturedFrame> m_reorder = new TreeMap<Long, CapturedFrame>();
+  
+  /**
+   * The positions of the frames dropped by the capture stage, which the
+   * decoder must not wait for
+   */
+  protected ConcurrentSkipListSet<Long> m_dropped = new ConcurrentSkipListSet<Long>();
+  
+  /**
+   * The position of the next frame to be passed to the decoder
+   */
+  protected long m_nextSequence = 0;
+  
+  /**
+   * The position of the last frame passed to the decoder that was
+   * actually decoded, rather than found to repeat another. When the
+   * frame decoded was a repeat, this is the position of the frame it
+   * repeats.
+   */
+  protected long m_lastDecodedSequence = -1;
+  
+  /**
+   * The contents of the last frame passed to the decoder that was
+   * actually decoded, reused for the frames that repeat it
+   */
+  protected List<String> m_lastContents = null;
+  
+  /**
+   * The last frame passed to the decoder and not yet taken by the
+   * window, which shows it on its next refresh
+   */
+  protected AtomicReference<CapturedFrame> m_latest = new AtomicReference<CapturedFrame>();
+  
+  /**
+   * The stage capturing frames, when stages run in separate threads
+   */
+  protected CaptureStage m_captureStage = null;
+  
+  /**
+   * The threads of the stages, once started
+   */
+  protected Thread[] m_stageThreads = null;
+  
+  /**
+   * The timer refreshing the window, once started
+   */
+  protected Timer m_displayTimer = null;
+  
+  /**
+   * Whether the stages running in separate threads must stop
+   */
+  protected volatile boolean m_stagesStopped = false;
+  
   public CameraWindowUpdater(CameraDisplayFrame window, ZXingReader reader, FrameDecoder decoder, int interval)
   {
     super(interval);
@@ -38,6 +204,125 @@ public class CameraWindowUpdater extends WindowUpdater
     }
   }
   
+  /**
+   * Creates an updater that reads frames from a video file through
+   * OpenCV, instead of from the camera. The frames then go through the
+   * same capture path as those of a camera.
+   * @param window The window showing the frames
+   * @param reader The reader used to read the codes
+   * @param decoder The decoder the contents of the codes are sent to
+   * @param interval The refresh interval, in milliseconds
+   * @param filename The name of the video file
+   */
+  public CameraWindowUpdater(CameraDisplayFrame window, ZXingReader reader, FrameDecoder decoder, int interval, String filename)
+  {
+    super(interval);
+    m_window = window;
+    m_reader = reader;
+    m_decoder = decoder;
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    m_camera = new VideoCapture(filename);
+    if(!m_camera.isOpened())
+    {
+      System.err.println("Cannot open " + filename);
+      System.exit(FrontEnd.ERR_IO);
+    }
+  }
+  
+  /**
+   * Sets the detector used to skip frames that repeat the last decoded
+   * one
+   * @param detector The detector, or null to decode every frame
+   */
+  public void setDuplicateDetector(DuplicateFrameDetector detector)
+  {
+    m_detector = detector;
+  }
+  
+  /**
+   * Sets the number of codes in each frame. When greater than 1, all
+   * the codes of a frame are read and passed to the decoder in reading
+   * order.
+   * @param codes The number of codes
+   */
+  public void setCodesPerFrame(int codes)
+  {
+    m_codesPerFrame = Math.max(1, codes);
+  }
+  
+  /**
+   * Sets whether to drop the frames captured while the decoder is busy.
+   * When enabled, a separate thread reads frames from the camera as
+   * fast as it produces them, and keeps only the most recent; each
+   * iteration of the loop decodes that frame, and the frames it
+   * replaced are counted as shed in the decoder's statistics. Otherwise,
+   * each iteration reads the next frame from the camera, which lags
+   * behind when decoding takes longer than the refresh interval.
+   * @param b Set to true to shed frames
+   */
+  public void setShedFrames(boolean b)
+  {
+    m_shedFrames = b;
+  }
+  
+  /**
+   * Sets whether to convert captured frames to gray with OpenCV. The
+   * gray pixels are copied directly from the OpenCV frame into a
+   * <code>TYPE_BYTE_GRAY</code> image, and the frames and images are
+   * reused from one capture to the next. Otherwise, each frame is
+   * encoded as a BMP file and parsed back by ImageIO into a new colour
+   * image.
+   * @param b Set to true to capture gray frames
+   */
+  public void setGrayCapture(boolean b)
+  {
+    m_grayCapture = b;
+  }
+  
+  /**
+   * Runs capture, decoding, reception and display in separate stages.
+   * A thread captures frames into a bounded queue, dropping the oldest
+   * when the decoding threads fall behind; decoding threads read the
+   * codes of these frames; the updater's own thread passes the contents
+   * to the decoder in the order the frames were captured; a timer
+   * refreshes the window at its own, slower rate. A slow repaint or a
+   * hard frame then no longer delays the capture of the next frames.
+   * The stages share a fixed number of frames, which are only reused
+   * once the window has moved on to a later one.
+   * @param threads The number of decoding threads, or 0 to run all
+   *   stages one after the other in the updater's thread
+   */
+  public void setPipeline(int threads)
+  {
+    m_decodeThreads = Math.max(0, threads);
+  }
+  
+  /**
+   * Sets the interval between two refreshes of the window when stages
+   * run in separate threads
+   * @param interval The interval, in milliseconds
+   */
+  public void setDisplayInterval(int interval)
+  {
+    m_displayInterval = Math.max(1, interval);
+  }
+  
+  /**
+   * Stops the threads of the stages, if they were started
+   */
+  public void stopPipeline()
+  {
+    m_stagesStopped = true;
+    if (m_captureStage != null)
+    {
+      m_captureStage.stop();
+    }
+    if (m_displayTimer != null)
+    {
+      m_displayTimer.stop();
+    }
+  }
+  
   public void setProcessEvents(boolean b)
   {
     m_decoder.setProcessEvents(b);
@@ -49,11 +334,119 @@ public class CameraWindowUpdater extends WindowUpdater
    */
   protected BufferedImage getCameraFrame()
   {
-    Mat frame = new Mat();
-    m_camera.read(frame);
+    if (m_shedFrames)
+    {
+      if (m_grabber == null)
+      {
+        // From now on, only the grabber's thread uses the camera
+        m_grabber = new FrameGrabber();
+        Thread th = new Thread(m_grabber);
+        th.setDaemon(true);
+        th.start();
+      }
+      Mat frame = m_grabber.takeLatest(m_refreshInterval);
+      m_decoder.addShedFrames(m_grabber.takeShedCount());
+      if (frame == null)
+      {
+        return null;
+      }
+      BufferedImage img = convertFrame(frame);
+      m_grabber.recycle(frame);
+      return img;
+    }
+    if (m_frame == null)
+    {
+      m_frame = new Mat();
+    }
+    if (!m_camera.read(m_frame) || m_frame.empty())
+    {
+      return null;
+    }
+    return convertFrame(m_frame);
+  }
+  
+  /**
+   * Converts a captured frame into an image, according to the capture
+   * path in use
+   * @param frame The frame
+   * @return The image, or null if it could not be converted
+   */
+  protected BufferedImage convertFrame(Mat frame)
+  {
+    if (m_grayCapture)
+    {
+      return toGrayImage(frame);
+    }
+    return toImage(frame);
+  }
+  
+  /**
+   * Converts a frame to gray with OpenCV, and copies its pixels into the
+   * next of the reused gray images
+   * @param frame The frame
+   * @return The image
+   */
+  protected BufferedImage toGrayImage(Mat frame)
+  {
+    BufferedImage img = toGrayImage(frame, m_grayImages[m_grayPosition]);
+    m_grayImages[m_grayPosition] = img;
+    m_grayPosition = (m_grayPosition + 1) % m_grayImages.length;
+    return img;
+  }
+  
+  /**
+   * Converts a frame to gray with OpenCV, and copies its pixels into an
+   * image
+   * @param frame The frame
+   * @param img The image to copy the pixels into. It is replaced by a
+   *   new image if it is null or not of the size of the frame.
+   * @return The image the pixels were copied into
+   */
+  protected BufferedImage toGrayImage(Mat frame, BufferedImage img)
+  {
+    Mat gray = frame;
+    if (frame.channels() > 1)
+    {
+      if (m_grayFrame == null)
+      {
+        m_grayFrame = new Mat();
+      }
+      // Reallocates the destination only if the size of frames changes
+      Imgproc.cvtColor(frame, m_grayFrame, frame.channels() == 4 ? Imgproc.COLOR_BGRA2GRAY : Imgproc.COLOR_BGR2GRAY);
+      gray = m_grayFrame;
+    }
+    else if (!frame.isContinuous())
+    {
+      // Rows must follow each other to be copied in one go
+      if (m_grayFrame == null)
+      {
+        m_grayFrame = new Mat();
+      }
+      frame.copyTo(m_grayFrame);
+      gray = m_grayFrame;
+    }
+    int width = gray.cols();
+    int height = gray.rows();
+    if (img == null || img.getWidth() != width || img.getHeight() != height)
+    {
+      img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+    }
+    byte[] pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+    gray.get(0, 0, pixels);
+    return img;
+  }
+  
+  /**
+   * Converts a frame captured by OpenCV into an image
+   * @param frame The frame
+   * @return The image, or null if it could not be converted
+   */
+  protected static BufferedImage toImage(Mat frame)
+  {
     MatOfByte buf = new MatOfByte();
     Highgui.imencode(".bmp", frame, buf);
     byte[] bytes = buf.toArray();
+    buf.release();
     ByteArrayInputStream in = new ByteArrayInputStream(bytes);
     BufferedImage img = null;
     try
@@ -70,6 +463,10 @@ public class CameraWindowUpdater extends WindowUpdater
   @Override
   public LoopStatus actionLoop()
   {
+    if (m_decodeThreads > 0)
+    {
+      return receiveLoop();
+    }
     long time_beg = System.nanoTime();
     // Poll sender for a new image
     BufferedImage img = getCameraFrame();
@@ -77,10 +474,25 @@ public class CameraWindowUpdater extends WindowUpdater
     {
       // A new image was sent: update the window
       m_window.setImage(img);
-      String contents = m_reader.readCode(img);
-      m_window.setFrameContents(contents);
-      m_window.repaint();
-      m_decoder.setNewFrame(contents); 
+      if (m_codesPerFrame > 1)
+      {
+        readCodes(img);
+      }
+      else
+      {
+        String contents = null;
+        if (m_detector != null)
+        {
+          contents = m_detector.readCode(m_reader, img);
+        }
+        else
+        {
+          contents = m_reader.readCode(img);
+        }
+        m_window.setFrameContents(contents);
+        m_window.repaint();
+        m_decoder.setNewFrame(contents);
+      }
     }
     // Sleep a little while
     long time_now = System.nanoTime();
@@ -90,6 +502,555 @@ public class CameraWindowUpdater extends WindowUpdater
     return LoopStatus.ACTIVE;
   }
   
+  /**
+   * Passes the contents of decoded frames to the decoder, in the order
+   * the frames were captured. This is the loop of the updater's thread
+   * when stages run in separate threads.
+   * @return The status of the loop
+   */
+  protected LoopStatus receiveLoop()
+  {
+    if (m_stageThreads == null)
+    {
+      startPipeline();
+    }
+    CapturedFrame frame = null;
+    try
+    {
+      frame = m_decoded.poll(Math.max(1, m_refreshInterval), TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e)
+    {
+      return LoopStatus.FINISHED;
+    }
+    m_decoder.addShedFrames(m_captureStage.takeShedCount());
+    if (frame != null)
+    {
+      // Decoding threads may finish out of order
+      m_reorder.put(frame.m_sequence, frame);
+    }
+    while (true)
+    {
+      if (!m_reorder.isEmpty() && m_reorder.firstKey() == m_nextSequence)
+      {
+        receive(m_reorder.remove(m_reorder.firstKey()));
+      }
+      else if (!m_dropped.remove(m_nextSequence))
+      {
+        break;
+      }
+      m_nextSequence++;
+    }
+    return LoopStatus.ACTIVE;
+  }
+  
+  /**
+   * Passes the contents of a frame to the decoder, and makes it the next
+   * frame shown by the window
+   * @param frame The frame
+   */
+  protected void receive(CapturedFrame frame)
+  {
+    if (frame.m_contents == null && frame.m_reference >= 0 && frame.m_reference == m_lastDecodedSequence && DuplicateFrameDetector.containsCode(m_lastContents))
+    {
+      // The frame repeats the last one decoded
+      frame.m_contents = m_lastContents;
+    }
+    else
+    {
+      long decoded = frame.m_sequence;
+      if (frame.m_contents == null)
+      {
+        // Either no code could be read from the frame it repeats, which
+        // then cannot be used as a reference, or that frame was dropped
+        // after this one was taken by a decoding thread: read it now.
+        // It shows the same picture, so it stands for that frame for the
+        // repeats that follow.
+        frame.m_contents = readContents(frame.m_image);
+        if (frame.m_reference >= 0)
+        {
+          decoded = frame.m_reference;
+        }
+      }
+      m_lastDecodedSequence = decoded;
+      m_lastContents = frame.m_contents;
+    }
+    for (String contents : frame.m_contents)
+    {
+      m_decoder.setNewFrame(contents);
+    }
+    CapturedFrame replaced = m_latest.getAndSet(frame);
+    if (replaced != null)
+    {
+      // The window never showed it
+      recycle(replaced);
+    }
+  }
+  
+  /**
+   * Reads the codes of a frame
+   * @param img The frame
+   * @return The contents of the codes
+   */
+  protected List<String> readContents(BufferedImage img)
+  {
+    if (m_codesPerFrame > 1)
+    {
+      return m_reader.readCodes(img, m_codesPerFrame);
+    }
+    return Collections.singletonList(m_reader.readCode(img));
+  }
+  
+  /**
+   * Gives back a frame no longer used by any stage, so that a later
+   * capture can be read into it
+   * @param frame The frame
+   */
+  protected void recycle(CapturedFrame frame)
+  {
+    frame.m_contents = null;
+    m_freeFrames.offer(frame);
+  }
+  
+  /**
+   * Creates the queues between the stages and the frames going through
+   * them, and starts the capture thread, the decoding threads and the
+   * display timer
+   */
+  protected void startPipeline()
+  {
+    // One frame waiting for each decoding thread
+    m_captureCapacity = Math.max(2, m_decodeThreads);
+    // Enough frames for those waiting to be decoded, one being decoded
+    // by each thread, three times as many decoded and waiting to be
+    // passed to the decoder (some of them ahead of a slow frame), one
+    // being captured, the one waiting to be shown and the one shown.
+    // When there are none left, the capture stage drops the oldest
+    // frame waiting to be decoded and reuses it.
+    int frames = m_captureCapacity + 4 * m_decodeThreads + 3;
+    m_freeFrames = new ArrayBlockingQueue<CapturedFrame>(frames);
+    for (int i = 0; i < frames; i++)
+    {
+      m_freeFrames.add(new CapturedFrame());
+    }
+    m_captured = new ArrayBlockingQueue<CapturedFrame>(frames);
+    m_decoded = new ArrayBlockingQueue<CapturedFrame>(frames);
+    m_captureStage = new CaptureStage();
+    m_stageThreads = new Thread[m_decodeThreads + 1];
+    m_stageThreads[0] = new Thread(m_captureStage, "capture");
+    for (int i = 0; i < m_decodeThreads; i++)
+    {
+      m_stageThreads[i + 1] = new Thread(new DecodeStage(), "decode-" + i);
+    }
+    for (Thread th : m_stageThreads)
+    {
+      th.setDaemon(true);
+      th.start();
+    }
+    if (m_window != null)
+    {
+      m_displayTimer = new Timer(m_displayInterval, new DisplayRefresher());
+      m_displayTimer.start();
+    }
+  }
+  
+  /**
+   * Reads all the codes in a frame, and passes them to the decoder
+   * @param img The frame
+   */
+  protected void readCodes(BufferedImage img)
+  {
+    List<String> codes = null;
+    if (m_detector != null)
+    {
+      codes = m_detector.readCodes(m_reader, img, m_codesPerFrame);
+    }
+    else
+    {
+      codes = m_reader.readCodes(img, m_codesPerFrame);
+    }
+    // The window shows the first code that could be read
+    String shown = null;
+    for (String contents : codes)
+    {
+      if (shown == null)
+      {
+        shown = contents;
+      }
+      m_decoder.setNewFrame(contents);
+    }
+    m_window.setFrameContents(shown);
+    m_window.repaint();
+  }
+  
+  /**
+   * Reads frames from the camera in a loop, keeping only the most
+   * recent one until it is taken by the decoding loop
+   */
+  protected class FrameGrabber extends StoppableRunnable
+  {
+    /**
+     * The last frame captured and not yet taken, if any
+     */
+    protected Mat m_latest = null;
+    
+    /**
+     * The number of frames replaced by a newer one before being taken,
+     * since the count was last taken
+     */
+    protected int m_shedCount = 0;
+    
+    /**
+     * A frame no longer in use, which the next capture is read into
+     */
+    protected Mat m_spare = null;
+    
+    @Override
+    public LoopStatus actionLoop()
+    {
+      Mat frame = null;
+      synchronized (this)
+      {
+        frame = m_spare;
+        m_spare = null;
+      }
+      if (frame == null)
+      {
+        frame = new Mat();
+      }
+      // Reading blocks until the camera has a new frame
+      if (!m_camera.read(frame) || frame.empty())
+      {
+        recycle(frame);
+        safeSleep(10);
+        return LoopStatus.ACTIVE;
+      }
+      synchronized (this)
+      {
+        if (m_latest != null)
+        {
+          // The decoder did not keep up: drop the older frame, and
+          // read the next capture into it
+          m_spare = m_latest;
+          m_shedCount++;
+        }
+        m_latest = frame;
+        notifyAll();
+      }
+      return LoopStatus.ACTIVE;
+    }
+    
+    /**
+     * Gives back a frame taken with {@link #takeLatest(int)} once it is
+     * no longer used, so that it can be reused for a later capture
+     * @param frame The frame
+     */
+    public synchronized void recycle(Mat frame)
+    {
+      if (m_spare == null)
+      {
+        m_spare = frame;
+      }
+      else
+      {
+        frame.release();
+      }
+    }
+    
+    /**
+     * Takes the most recent frame, waiting for one if necessary
+     * @param timeout The maximum time to wait, in milliseconds
+     * @return The frame, or null if none was captured in time
+     */
+    public synchronized Mat takeLatest(int timeout)
+    {
+      if (m_latest == null)
+      {
+        try
+        {
+          wait(Math.max(1, timeout));
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+      Mat frame = m_latest;
+      m_latest = null;
+      return frame;
+    }
+    
+    /**
+     * Gets the number of frames shed since the last call, and resets it
+     * @return The number of frames
+     */
+    public synchronized int takeShedCount()
+    {
+      int count = m_shedCount;
+      m_shedCount = 0;
+      return count;
+    }
+  }
+  
+  /**
+   * A frame going through the stages. The same frames, and their images,
+   * are reused from one capture to the next.
+   */
+  protected static class CapturedFrame
+  {
+    protected BufferedImage m_image = null;
+    
+    /**
+     * The position of the frame in the sequence of frames captured
+     */
+    protected long m_sequence = 0;
+    
+    /**
+     * The position of the frame this one repeats, or -1 if it is not a
+     * repeat and must be decoded. This is only changed by the capture
+     * stage, when the frame it refers to is dropped.
+     */
+    protected volatile long m_reference = -1;
+    
+    /**
+     * The contents of the codes, or null if the frame was not decoded
+     */
+    protected List<String> m_contents = null;
+  }
+  
+  /**
+   * Captures frames as fast as the camera produces them. When the
+   * decoding threads fall behind and the queue is full, or when no frame
+   * is free, the oldest frame waiting is dropped and reused for the new
+   * capture.
+   */
+  protected class CaptureStage extends StoppableRunnable
+  {
+    /**
+     * The number of frames dropped since the count was last taken
+     */
+    protected int m_shedCount = 0;
+    
+    /**
+     * The position given to the next frame captured
+     */
+    protected long m_captureSequence = 0;
+    
+    /**
+     * The position of the frame the detector compares new frames to,
+     * or -1 if there is none
+     */
+    protected long m_referenceSequence = -1;
+    
+    @Override
+    public LoopStatus actionLoop()
+    {
+      if (m_stagesStopped)
+      {
+        return LoopStatus.FINISHED;
+      }
+      if (m_frame == null)
+      {
+        m_frame = new Mat();
+      }
+      // Reading blocks until the camera has a new frame
+      if (!m_camera.read(m_frame) || m_frame.empty())
+      {
+        safeSleep(10);
+        return LoopStatus.ACTIVE;
+      }
+      CapturedFrame frame = null;
+      if (m_captured.size() < m_captureCapacity)
+      {
+        frame = m_freeFrames.poll();
+      }
+      if (frame == null)
+      {
+        // The decoding threads did not keep up
+        frame = dropOldest();
+      }
+      if (frame == null)
+      {
+        // Every frame is being decoded or waits for a slower one: this
+        // capture is lost
+        addShed();
+        return LoopStatus.ACTIVE;
+      }
+      if (m_grayCapture)
+      {
+        frame.m_image = toGrayImage(m_frame, frame.m_image);
+      }
+      else
+      {
+        frame.m_image = toImage(m_frame);
+      }
+      if (frame.m_image == null)
+      {
+        recycle(frame);
+        return LoopStatus.ACTIVE;
+      }
+      frame.m_sequence = m_captureSequence++;
+      frame.m_reference = -1;
+      if (m_detector != null)
+      {
+        if (m_detector.isRepeat(frame.m_image) && m_referenceSequence >= 0)
+        {
+          frame.m_reference = m_referenceSequence;
+        }
+        else
+        {
+          m_detector.acceptFrame();
+          m_referenceSequence = frame.m_sequence;
+        }
+      }
+      m_captured.add(frame);
+      return LoopStatus.ACTIVE;
+    }
+    
+    /**
+     * Drops the oldest frame waiting to be decoded. The frames waiting
+     * that repeat it are changed to repeat the first of them instead,
+     * which is decoded.
+     * @return The frame dropped, or null if no frame was waiting
+     */
+    protected CapturedFrame dropOldest()
+    {
+      CapturedFrame dropped = m_captured.poll();
+      if (dropped == null)
+      {
+        return null;
+      }
+      addShed();
+      m_dropped.add(dropped.m_sequence);
+      if (dropped.m_reference < 0)
+      {
+        long replacement = -1;
+        for (CapturedFrame waiting : m_captured)
+        {
+          if (waiting.m_reference != dropped.m_sequence)
+          {
+            continue;
+          }
+          if (replacement < 0)
+          {
+            replacement = waiting.m_sequence;
+            waiting.m_reference = -1;
+          }
+          else
+          {
+            waiting.m_reference = replacement;
+          }
+        }
+        if (m_referenceSequence == dropped.m_sequence)
+        {
+          // A waiting frame shows the same picture as the dropped one,
+          // if any; otherwise the next frame is decoded in full
+          m_referenceSequence = replacement;
+          if (replacement < 0 && m_detector != null)
+          {
+            m_detector.reset();
+          }
+        }
+      }
+      return dropped;
+    }
+    
+    /**
+     * Counts a frame as shed
+     */
+    protected synchronized void addShed()
+    {
+      m_shedCount++;
+    }
+    
+    /**
+     * Gets the number of frames dropped since the last call, and resets
+     * it
+     * @return The number of frames
+     */
+    public synchronized int takeShedCount()
+    {
+      int count = m_shedCount;
+      m_shedCount = 0;
+      return count;
+    }
+  }
+  
+  /**
+   * Reads the codes of captured frames. Frames are taken from the queue
+   * without any lock shared between the threads; the order in which
+   * they are passed to the decoder comes from their position, given at
+   * capture.
+   */
+  protected class DecodeStage implements Runnable
+  {
+    @Override
+    public void run()
+    {
+      try
+      {
+        while (!m_stagesStopped)
+        {
+          CapturedFrame frame = m_captured.poll(100, TimeUnit.MILLISECONDS);
+          if (frame == null)
+          {
+            continue;
+          }
+          if (frame.m_reference < 0)
+          {
+            frame.m_contents = readContents(frame.m_image);
+          }
+          m_decoded.put(frame);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        // The pipeline was stopped
+      }
+    }
+  }
+  
+  /**
+   * Shows the last frame passed to the decoder, at each tick of the
+   * display timer
+   */
+  protected class DisplayRefresher implements ActionListener
+  {
+    /**
+     * The frame shown at the previous tick
+     */
+    protected CapturedFrame m_shown = null;
+    
+    @Override
+    public void actionPerformed(ActionEvent e)
+    {
+      CapturedFrame frame = m_latest.getAndSet(null);
+      if (frame == null)
+      {
+        return;
+      }
+      m_window.setImage(frame.m_image);
+      // The timer runs in the thread that paints the window, so the
+      // previous frame is no longer painted from now on
+      if (m_shown != null)
+      {
+        recycle(m_shown);
+      }
+      m_shown = frame;
+      String shown = null;
+      for (String contents : frame.m_contents)
+      {
+        if (contents != null)
+        {
+          shown = contents;
+          break;
+        }
+      }
+      m_window.setFrameContents(shown);
+      m_window.repaint();
+    }
+  }
+  
   protected static void safeSleep(int duration)
   {
     try
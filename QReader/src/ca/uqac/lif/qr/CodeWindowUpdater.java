@@ -18,8 +18,12 @@
 package ca.uqac.lif.qr;
 
 import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import ca.uqac.info.buffertannen.message.BitSequence;
+import ca.uqac.lif.util.StoppableRunnable;
 
 public class CodeWindowUpdater extends WindowUpdater
 {
@@ -33,6 +37,51 @@ public class CodeWindowUpdater extends WindowUpdater
    */
   protected ZXingWriter m_writer;
   
+  /**
+   * The number of codes in each row and column of the images shown
+   */
+  protected int m_gridSize = 1;
+  
+  /**
+   * The images codes are written into, used in turn. There are two, so
+   * that the window can still paint one while the next is written.
+   */
+  protected BufferedImage[] m_codeImages = new BufferedImage[2];
+  
+  /**
+   * The position of the next image to write in the array of images
+   */
+  protected int m_codePosition = 0;
+  
+  /**
+   * The number of frames rendered ahead of the one shown, or 0 to
+   * render each frame when it is shown
+   */
+  protected int m_renderAhead = 0;
+  
+  /**
+   * The frames rendered and waiting to be shown
+   */
+  protected BlockingQueue<BufferedImage> m_ready = null;
+  
+  /**
+   * The images no longer shown, which the renderer writes the next
+   * frames into
+   */
+  protected BlockingQueue<BufferedImage> m_free = null;
+  
+  /**
+   * The last images shown, most recent first. An image is only given
+   * back to the renderer once a newer one has been shown after it, in
+   * case the window is still painting it.
+   */
+  protected BufferedImage[] m_shown = new BufferedImage[2];
+  
+  /**
+   * The thread rendering frames ahead, once started
+   */
+  protected Thread m_rendererThread = null;
+  
   public CodeWindowUpdater(FrameEncoder sender, ZXingWriter rw, int interval)
   {
     super(interval);
@@ -40,23 +89,65 @@ public class CodeWindowUpdater extends WindowUpdater
     m_writer = rw;
   }
   
+  /**
+   * Sets the number of codes shown in each image
+   * @param size The images show <code>size</code> &times;
+   *   <code>size</code> codes
+   */
+  public void setGridSize(int size)
+  {
+    m_gridSize = Math.max(1, size);
+  }
+  
+  /**
+   * Sets the number of frames rendered ahead of the one shown. When
+   * greater than 0, a separate thread polls the encoder and writes the
+   * codes into images as soon as there is room in a queue of that many
+   * frames; each refresh of the window then only takes the next image
+   * from the queue. A frame that is slow to encode then no longer
+   * delays the refresh of the window, as long as the frames before it
+   * were rendered in time.
+   * @param frames The number of frames, or 0 to render each frame when
+   *   it is shown
+   */
+  public void setRenderAhead(int frames)
+  {
+    m_renderAhead = Math.max(0, frames);
+  }
+  
   @Override
   public synchronized LoopStatus actionLoop()
   {
     long time_beg = System.nanoTime();
     // Poll sender for a new image
-    BitSequence bs = m_encoder.pollNextFrame();
     BufferedImage img = null;
-    if (bs != null)
+    if (m_renderAhead > 0)
     {
-      img = m_writer.getCode(bs.toBase64());
+      if (m_rendererThread == null)
+      {
+        startRenderer();
+      }
+      img = m_ready.poll();
+    }
+    else
+    {
+      img = renderFrame(m_codeImages[m_codePosition]);
+      if (img != null)
+      {
+        m_codeImages[m_codePosition] = img;
+        m_codePosition = (m_codePosition + 1) % m_codeImages.length;
+        m_encoder.printStatsInterval();
+      }
     }
     if (img != null)
     {
       // A new image was sent: update the window
-      m_encoder.printStatsInterval();
       m_window.setImage(img);
       m_window.repaint();
+      if (m_renderAhead > 0)
+      {
+        recycle(img);
+      }
     }
     // Sleep a little while
     long time_now = System.nanoTime();
@@ -72,4 +163,94 @@ public class CodeWindowUpdater extends WindowUpdater
     // We want to be called again
     return LoopStatus.ACTIVE;
   }
+  
+  /**
+   * Polls the encoder for the next frame, and writes its codes into an
+   * image
+   * @param img An image that can be written into, or null to create a
+   *   new one
+   * @return The image, or null if the encoder has no frame to send
+   */
+  protected BufferedImage renderFrame(BufferedImage img)
+  {
+    if (m_gridSize > 1)
+    {
+      List<String> frames = m_encoder.pollNextFrames(m_gridSize * m_gridSize);
+      if (frames == null)
+      {
+        return null;
+      }
+      return m_writer.getCodeGrid(frames, m_gridSize, img);
+    }
+    BitSequence bs = m_encoder.pollNextFrame();
+    if (bs == null)
+    {
+      return null;
+    }
+    return m_writer.getCode(bs.toBase64(), img);
+  }
+  
+  /**
+   * Creates the queues of images, and starts the thread rendering
+   * frames ahead
+   */
+  protected void startRenderer()
+  {
+    m_ready = new ArrayBlockingQueue<BufferedImage>(m_renderAhead);
+    // Images are either queued, being rendered, shown or waiting to be
+    // reused
+    m_free = new ArrayBlockingQueue<BufferedImage>(m_renderAhead + m_shown.length + 1);
+    m_rendererThread = new Thread(new FrameRenderer(), "renderer");
+    m_rendererThread.setDaemon(true);
+    m_rendererThread.start();
+  }
+  
+  /**
+   * Records an image as shown, and gives back to the renderer the one
+   * shown before the previous one
+   * @param img The image
+   */
+  protected void recycle(BufferedImage img)
+  {
+    BufferedImage oldest = m_shown[m_shown.length - 1];
+    for (int i = m_shown.length - 1; i > 0; i--)
+    {
+      m_shown[i] = m_shown[i - 1];
+    }
+    m_shown[0] = img;
+    if (oldest != null)
+    {
+      m_free.offer(oldest);
+    }
+  }
+  
+  /**
+   * Renders frames into the queue of images waiting to be shown, as long
+   * as there is room in it
+   */
+  protected class FrameRenderer extends StoppableRunnable
+  {
+    @Override
+    public LoopStatus actionLoop()
+    {
+      BufferedImage img = renderFrame(m_free.poll());
+      if (img == null)
+      {
+        // Nothing to send for now
+        CameraWindowUpdater.safeSleep(Math.max(1, m_refreshInterval / 2));
+        return LoopStatus.ACTIVE;
+      }
+      m_encoder.printStatsInterval();
+      try
+      {
+        // Blocks while the queue is full
+        m_ready.put(img);
+      }
+      catch (InterruptedException e)
+      {
+        return LoopStatus.FINISHED;
+      }
+      return LoopStatus.ACTIVE;
+    }
+  }
 }
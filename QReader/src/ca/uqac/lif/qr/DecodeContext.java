@@ -0,0 +1,241 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.qr;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Buffers reused from one frame to the next when decoding a stream of
+ * images. A context holds the grayscale values of the current image,
+ * and the bit matrices it is binarized into; once the first frames
+ * have been seen, decoding a frame of the same size allocates none of
+ * them again.
+ * <p>
+ * A context is meant to be used by a single thread, and only for one
+ * image at a time: the luminance source and the matrices it returns
+ * are overwritten by the next calls.
+ * @author sylvain
+ *
+ */
+public class DecodeContext
+{
+  /**
+   * The number of bit matrices of different sizes kept by the context.
+   * Two are enough for a frame and the region of it where the code was
+   * last found.
+   */
+  protected static final int MATRIX_SLOTS = 2;
+
+  /**
+   * The grayscale values of the current image
+   */
+  protected byte[] m_luminances = new byte[0];
+
+  /**
+   * Buffer used to fetch the pixels of one row of a colour image
+   */
+  protected int[] m_pixels = new int[0];
+
+  /**
+   * Buffer used to fetch one row of luminance values
+   */
+  protected byte[] m_rowBuffer = new byte[0];
+
+  /**
+   * The grayscale values of a downsampled copy of the current image
+   */
+  protected byte[] m_scaled = new byte[0];
+  
+  /**
+   * Bit array used to binarize one row
+   */
+  protected BitArray m_row = null;
+
+  /**
+   * The bit matrices, from the most to the least recently used
+   */
+  protected BitMatrix[] m_matrices = new BitMatrix[MATRIX_SLOTS];
+
+  /**
+   * Converts an image to grayscale. BGR and gray images are read by a
+   * {@link RasterLuminanceSource}; other images are converted with the
+   * weights of ZXing's explicit luminance conversion. The values are
+   * written into the context's buffer, which is only enlarged when the
+   * image is bigger than all the previous ones.
+   * @param img The image to convert
+   * @return A luminance source over the buffer, valid until the next
+   *   call to this method
+   */
+  public LuminanceSource getLuminanceSource(BufferedImage img)
+  {
+    int width = img.getWidth();
+    int height = img.getHeight();
+    if (m_luminances.length < width * height)
+    {
+      m_luminances = new byte[width * height];
+    }
+    if (RasterLuminanceSource.isSupported(img))
+    {
+      // Gray images are used in place; BGR images are converted
+      // into the buffer
+      return new RasterLuminanceSource(img, m_luminances);
+    }
+    if (img.getType() == BufferedImage.TYPE_BYTE_GRAY)
+    {
+      Raster raster = img.getRaster();
+      for (int y = 0; y < height; y++)
+      {
+        // Copies the row straight into the buffer
+        fillRow(raster, y, width);
+      }
+    }
+    else
+    {
+      if (m_pixels.length < width)
+      {
+        m_pixels = new int[width];
+      }
+      for (int y = 0; y < height; y++)
+      {
+        img.getRGB(0, y, width, 1, m_pixels, 0, width);
+        int offset = y * width;
+        for (int x = 0; x < width; x++)
+        {
+          int pixel = m_pixels[x];
+          if ((pixel & 0xff000000) == 0)
+          {
+            // Fully transparent pixels are considered white
+            m_luminances[offset + x] = (byte) 0xff;
+          }
+          else
+          {
+            m_luminances[offset + x] = (byte) ((306 * ((pixel >> 16) & 0xff) + 601 * ((pixel >> 8) & 0xff) + 117 * (pixel & 0xff) + 0x200) >> 10);
+          }
+        }
+      }
+    }
+    return new PlanarYUVLuminanceSource(m_luminances, width, height, 0, 0, width, height, false);
+  }
+
+  /**
+   * Copies one row of a grayscale raster into the luminance buffer
+   * @param raster The raster
+   * @param y The row to copy
+   * @param width The width of the raster
+   */
+  protected void fillRow(Raster raster, int y, int width)
+  {
+    if (m_rowBuffer.length < width)
+    {
+      m_rowBuffer = new byte[width];
+    }
+    raster.getDataElements(0, y, width, 1, m_rowBuffer);
+    System.arraycopy(m_rowBuffer, 0, m_luminances, y * width, width);
+  }
+
+  /**
+   * Gets a buffer for one row of luminance values
+   * @param width The width of the row
+   * @return The buffer, with at least <code>width</code> elements
+   */
+  public byte[] getRowBuffer(int width)
+  {
+    if (m_rowBuffer.length < width)
+    {
+      m_rowBuffer = new byte[width];
+    }
+    return m_rowBuffer;
+  }
+
+  /**
+   * Gets a buffer for the luminance values of a downsampled image
+   * @param size The number of pixels of the image
+   * @return The buffer, with at least <code>size</code> elements
+   */
+  public byte[] getScaledBuffer(int size)
+  {
+    if (m_scaled.length < size)
+    {
+      m_scaled = new byte[size];
+    }
+    return m_scaled;
+  }
+
+  /**
+   * Gets an empty bit array for one row
+   * @param width The width of the row
+   * @return The bit array, with at least <code>width</code> bits
+   */
+  public BitArray getRow(int width)
+  {
+    if (m_row == null || m_row.getSize() < width)
+    {
+      m_row = new BitArray(width);
+    }
+    else
+    {
+      m_row.clear();
+    }
+    return m_row;
+  }
+
+  /**
+   * Gets an empty bit matrix of a given size. The matrix returned
+   * previously for the same size is cleared and returned again.
+   * @param width The width of the matrix
+   * @param height The height of the matrix
+   * @return The matrix
+   */
+  public BitMatrix getMatrix(int width, int height)
+  {
+    BitMatrix matrix = null;
+    int slot = MATRIX_SLOTS - 1;
+    for (int i = 0; i < MATRIX_SLOTS; i++)
+    {
+      BitMatrix m = m_matrices[i];
+      if (m != null && m.getWidth() == width && m.getHeight() == height)
+      {
+        matrix = m;
+        slot = i;
+        break;
+      }
+    }
+    if (matrix == null)
+    {
+      // Replace the least recently used matrix
+      matrix = new BitMatrix(width, height);
+    }
+    else
+    {
+      matrix.clear();
+    }
+    // Move the matrix to the front
+    for (int i = slot; i > 0; i--)
+    {
+      m_matrices[i] = m_matrices[i - 1];
+    }
+    m_matrices[0] = matrix;
+    return matrix;
+  }
+}
@@ -0,0 +1,293 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.qr;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.List;
+
+/**
+ * Detects frames that show the same picture as a previous one. When a
+ * camera captures images faster than the sender displays codes, several
+ * consecutive captures show the same code; decoding them all gives the
+ * same contents over and over again.
+ * <p>
+ * Each frame is reduced to a signature: the brightness of the pixels
+ * on a coarse grid spread over the whole image. A frame is a repeat if
+ * almost all these samples are the same (up to camera noise) as those
+ * of the reference frame. Normal use is as follows:
+ * <ol>
+ * <li>{@link #isRepeat(BufferedImage)} is called on each new frame</li>
+ * <li>If it returns true, the frame is not decoded, and the contents
+ *   of the reference frame are used instead</li>
+ * <li>Otherwise, the frame is decoded; if this succeeds, the caller
+ *   makes it the new reference by calling {@link #acceptFrame()}</li>
+ * </ol>
+ * {@link #readCode(ZXingReader, BufferedImage)} does all this for a
+ * single sequence of frames. Since a new code changes the colour of
+ * about half of the samples that fall on it, even a code covering a
+ * small part of the picture is seen as a different frame.
+ * @author sylvain
+ *
+ */
+public class DuplicateFrameDetector
+{
+  /**
+   * The number of samples in each row of the grid
+   */
+  protected static final int GRID_WIDTH = 96;
+
+  /**
+   * The number of samples in each column of the grid
+   */
+  protected static final int GRID_HEIGHT = 72;
+
+  /**
+   * The difference of brightness above which a sample is considered
+   * to have changed, rather than to be affected by noise
+   */
+  protected int m_sampleTolerance = 40;
+
+  /**
+   * The maximum number of samples that may change in a repeated frame
+   */
+  protected int m_maxChanged = GRID_WIDTH * GRID_HEIGHT / 1000;
+
+  /**
+   * The signature of the last frame passed to {@link #isRepeat}
+   */
+  protected int[] m_current = new int[GRID_WIDTH * GRID_HEIGHT];
+
+  /**
+   * The signature of the reference frame, or null if there is none
+   */
+  protected int[] m_reference = null;
+
+  /**
+   * The size of the reference frame
+   */
+  protected int m_referenceWidth = 0, m_referenceHeight = 0;
+
+  /**
+   * The size of the last frame passed to {@link #isRepeat}
+   */
+  protected int m_currentWidth = 0, m_currentHeight = 0;
+
+  /**
+   * The number of frames found to be repeats
+   */
+  protected int m_repeats = 0;
+
+  /**
+   * The contents decoded from the reference frame
+   */
+  protected String m_contents = null;
+
+  /**
+   * The contents of all the codes decoded from the reference frame,
+   * when frames contain more than one code
+   */
+  protected List<String> m_codes = null;
+
+  /**
+   * Sets the difference of brightness above which a sample is considered
+   * to have changed
+   * @param tolerance The difference, between 0 and 255
+   */
+  public void setSampleTolerance(int tolerance)
+  {
+    m_sampleTolerance = tolerance;
+  }
+
+  /**
+   * Checks whether a frame shows the same picture as the reference frame
+   * @param img The frame
+   * @return true if the frame is a repeat
+   */
+  public boolean isRepeat(BufferedImage img)
+  {
+    m_currentWidth = img.getWidth();
+    m_currentHeight = img.getHeight();
+    computeSignature(img, m_current);
+    if (m_reference == null || m_currentWidth != m_referenceWidth || m_currentHeight != m_referenceHeight)
+    {
+      return false;
+    }
+    int changed = 0;
+    for (int i = 0; i < m_current.length; i++)
+    {
+      if (Math.abs(m_current[i] - m_reference[i]) > m_sampleTolerance)
+      {
+        changed++;
+        if (changed > m_maxChanged)
+        {
+          return false;
+        }
+      }
+    }
+    m_repeats++;
+    return true;
+  }
+
+  /**
+   * Reads the code in a frame, unless the frame is a repeat of the
+   * last frame that was decoded
+   * @param reader The reader used to decode new frames
+   * @param img The frame
+   * @return The contents of the code, which are those of the last
+   *   decoded frame if this one is a repeat; null if no code could be
+   *   read
+   */
+  public String readCode(ZXingReader reader, BufferedImage img)
+  {
+    if (isRepeat(img))
+    {
+      return m_contents;
+    }
+    String contents = reader.readCode(img);
+    if (contents != null)
+    {
+      acceptFrame();
+      m_contents = contents;
+    }
+    return contents;
+  }
+
+  /**
+   * Reads all the codes in a frame, unless the frame is a repeat of the
+   * last frame that was decoded
+   * @param reader The reader used to decode new frames
+   * @param img The frame
+   * @param expected The number of codes expected in the frame
+   * @return The contents of the codes, as returned by
+   *   {@link ZXingReader#readCodes(BufferedImage, int)}
+   */
+  public List<String> readCodes(ZXingReader reader, BufferedImage img, int expected)
+  {
+    if (isRepeat(img) && m_codes != null)
+    {
+      return m_codes;
+    }
+    List<String> codes = reader.readCodes(img, expected);
+    if (containsCode(codes))
+    {
+      acceptFrame();
+      m_codes = codes;
+    }
+    return codes;
+  }
+
+  /**
+   * Checks whether at least one code was read from a frame
+   * @param codes The contents of the codes of the frame
+   * @return true if one of the codes is not null
+   */
+  protected static boolean containsCode(List<String> codes)
+  {
+    for (String code : codes)
+    {
+      if (code != null)
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Makes the last frame passed to {@link #isRepeat(BufferedImage)} the
+   * new reference frame
+   */
+  public void acceptFrame()
+  {
+    // Swap the signatures, so that no array is allocated
+    int[] old_reference = m_reference;
+    m_reference = m_current;
+    m_referenceWidth = m_currentWidth;
+    m_referenceHeight = m_currentHeight;
+    if (old_reference == null)
+    {
+      old_reference = new int[GRID_WIDTH * GRID_HEIGHT];
+    }
+    m_current = old_reference;
+  }
+
+  /**
+   * Forgets the reference frame, so that the next frame is never
+   * considered a repeat
+   */
+  public void reset()
+  {
+    m_reference = null;
+    m_contents = null;
+    m_codes = null;
+  }
+
+  /**
+   * Gets the number of frames found to be repeats so far
+   * @return The number of frames
+   */
+  public int getRepeatCount()
+  {
+    return m_repeats;
+  }
+
+  /**
+   * Samples the brightness of an image on the grid
+   * @param img The image
+   * @param signature The array to write the samples into
+   */
+  protected static void computeSignature(BufferedImage img, int[] signature)
+  {
+    int width = img.getWidth();
+    int height = img.getHeight();
+    // BGR and gray pixels are read from the raster, which is much faster
+    // than converting each of them to an RGB value
+    Raster raster = null;
+    int[] samples = null;
+    if (RasterLuminanceSource.isSupported(img))
+    {
+      raster = img.getRaster();
+      samples = new int[raster.getNumBands()];
+    }
+    int i = 0;
+    for (int gy = 0; gy < GRID_HEIGHT; gy++)
+    {
+      // Take the pixel at the center of each cell
+      int y = (2 * gy + 1) * height / (2 * GRID_HEIGHT);
+      for (int gx = 0; gx < GRID_WIDTH; gx++)
+      {
+        int x = (2 * gx + 1) * width / (2 * GRID_WIDTH);
+        if (raster == null)
+        {
+          int pixel = img.getRGB(x, y);
+          signature[i++] = (306 * ((pixel >> 16) & 0xff) + 601 * ((pixel >> 8) & 0xff) + 117 * (pixel & 0xff) + 0x200) >> 10;
+        }
+        else if (samples.length == 1)
+        {
+          signature[i++] = raster.getSample(x, y, 0);
+        }
+        else
+        {
+          raster.getPixel(x, y, samples);
+          signature[i++] = (306 * samples[0] + 601 * samples[1] + 117 * samples[2] + 0x200) >> 10;
+        }
+      }
+    }
+  }
+}
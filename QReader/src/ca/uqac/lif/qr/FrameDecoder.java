@@ -18,7 +18,9 @@
 package ca.uqac.lif.qr;
 
 import java.io.PrintStream;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 
 import ca.uqac.info.buffertannen.message.BitFormatException;
 import ca.uqac.info.buffertannen.message.BitSequence;
@@ -132,6 +134,32 @@ public class FrameDecoder
    */
   protected long m_displayRefreshInterval = 500000000;
   
+  /**
+   * The default number of payloads remembered by the payload cache
+   */
+  public static final int DEFAULT_CACHE_SIZE = 1024;
+  
+  /**
+   * The payloads recently passed to the receiver in lake mode, along
+   * with their size in bits. In this mode the sender loops over the
+   * same frames; a payload already in the cache is counted, but is
+   * neither decoded again nor given to the receiver, which already has
+   * the segment it contains.
+   */
+  protected PayloadCache m_payloadCache = new PayloadCache(DEFAULT_CACHE_SIZE);
+  
+  /**
+   * The number of bits in the payloads found in the cache; these bits
+   * are not counted by the receiver
+   */
+  protected int m_cachedBits = 0;
+  
+  /**
+   * The number of frames captured but dropped before being decoded, or
+   * -1 if the source of frames never drops any
+   */
+  protected int m_shedFrames = -1;
+  
   public FrameDecoder()
   {
     super();
@@ -155,6 +183,15 @@ public class FrameDecoder
     lost_frames = 0;
     lost_segments = 0;
     num_files = 0;
+    m_cachedBits = 0;
+    if (m_shedFrames > 0)
+    {
+      m_shedFrames = 0;
+    }
+    if (m_payloadCache != null)
+    {
+      m_payloadCache.clear();
+    }
     start_time = System.nanoTime();
     m_lastFrames.clear();
   }
@@ -169,6 +206,34 @@ public class FrameDecoder
     fps = rate;
   }
   
+  /**
+   * Sets the number of payloads remembered in lake mode, so that
+   * repeated frames are not processed again
+   * @param size The number of payloads; 0 disables the cache
+   */
+  public void setPayloadCacheSize(int size)
+  {
+    if (size <= 0)
+    {
+      m_payloadCache = null;
+    }
+    else
+    {
+      m_payloadCache = new PayloadCache(size);
+    }
+  }
+  
+  /**
+   * Counts frames that were captured, but dropped without being decoded
+   * because the decoder was busy. Once this method has been called, the
+   * number of such frames is shown in the statistics.
+   * @param count The number of frames
+   */
+  public void addShedFrames(int count)
+  {
+    m_shedFrames = Math.max(0, m_shedFrames) + count;
+  }
+  
   public void setNewFrame(String s)
   {
     BitSequence bs = null;
@@ -177,6 +242,18 @@ public class FrameDecoder
       setNewFrame(bs);
       return;
     }
+    if (isCaching())
+    {
+      Integer size = m_payloadCache.get(s);
+      if (size != null)
+      {
+        // Exact repeat of a segment the receiver already has
+        handleGoodFrame();
+        m_cachedBits += size;
+        printStatsInterval();
+        return;
+      }
+    }
     bs = new BitSequence();
     try
     {
@@ -186,7 +263,25 @@ public class FrameDecoder
     {
       bs = null;
     }
+    int size = bs == null ? 0 : bs.size();
     setNewFrame(bs);
+    if (bs != null && isCaching())
+    {
+      // Check the mode again: it is only known once the receiver
+      // has seen a first segment
+      m_payloadCache.put(s, size);
+    }
+  }
+  
+  /**
+   * Checks whether repeated payloads are currently looked up in the
+   * payload cache
+   * @return true if the cache is enabled and the receiver is in lake
+   *   mode
+   */
+  protected boolean isCaching()
+  {
+    return m_payloadCache != null && m_processEvents && m_receiver.getSendingMode() == Sender.SendingMode.LAKE;
   }
   
   public void setNewFrame(BitSequence bs)
@@ -407,7 +502,7 @@ public class FrameDecoder
       return;
     long end_time = System.nanoTime();
     int distinct_bits = m_receiver.getNumberOfDistinctBits();
-    int raw_bits = m_receiver.getNumberOfRawBits();
+    int raw_bits = m_receiver.getNumberOfRawBits() + m_cachedBits;
     int lost_count = m_receiver.getMessageLostCount();
     int good_frames_total = total_frames - lost_frames;
     long processing_time_ms = (end_time - start_time) / 1000000;
@@ -426,6 +521,10 @@ public class FrameDecoder
       m_statStream.println(" Sending mode:       stream        ");
     }
     m_statStream.printf (" Progress:           %04d/%04d (%02.1f sec. @%d fps)     \n", total_frames, num_files, (float) total_frames / (float) fps, fps);
+    if (m_shedFrames >= 0)
+    {
+      m_statStream.printf(" Shed frames:        %d (%d%% of captured)     \n", m_shedFrames, m_shedFrames * 100 / Math.max(1, m_shedFrames + total_frames));
+    }
     m_statStream.printf(" Link quality:       %02d/%02d %s (%3d%%) Global: %4d/%4d (%3d%%)      \n", m_goodFramesInInterval, m_decodingWidth, valueToMeter(m_goodFramesInInterval * 100 / m_decodingWidth, 0, 100, 10), m_goodFramesInInterval * 100 / m_decodingWidth, good_frames_total, total_frames, good_frames_total * 100 / Math.max(1, total_frames));
     if (m_processEvents)
     {
@@ -468,22 +567,52 @@ public class FrameDecoder
       }
     }
     m_statStream.println("----------------------------------------------------\n");  
-    // Move cursor up 15 lines (this is the number of lines written)
+    // Move cursor up by the number of lines written
     if (rewind)
     {
+      int lines = 6;
       if (m_processEvents)
       {
         if (mode == Sender.SendingMode.LAKE)
         {
-          m_statStream.print("\u001B[17A\r");
+          lines = 17;
         }
         else
         {
-          m_statStream.print("\u001B[16A\r");
+          lines = 16;
         }
       }
-      else
-        m_statStream.print("\u001B[6A\r");
+      if (m_shedFrames >= 0)
+      {
+        lines++;
+      }
+      m_statStream.print("\u001B[" + lines + "A\r");
+    }
+  }
+  
+  /**
+   * A map of bounded size, which forgets the least recently used
+   * payloads first
+   */
+  protected static class PayloadCache extends LinkedHashMap<String, Integer>
+  {
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * The maximum number of payloads in the cache
+     */
+    protected final int m_capacity;
+    
+    public PayloadCache(int capacity)
+    {
+      super(16, 0.75f, true);
+      m_capacity = capacity;
+    }
+    
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest)
+    {
+      return size() > m_capacity;
     }
   }
 }
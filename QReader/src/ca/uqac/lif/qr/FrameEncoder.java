@@ -19,6 +19,8 @@ package ca.uqac.lif.qr;
 
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import ca.uqac.info.buffertannen.message.BitSequence;
 import ca.uqac.info.buffertannen.protocol.Sender;
@@ -112,6 +114,38 @@ public abstract class FrameEncoder
     return pollNextFrameStream();
   }
   
+  /**
+   * Polls the sender for the frames to show in a single image, when
+   * several codes are displayed at once
+   * @param count The number of frames to poll
+   * @return The frames, encoded in Base64, in the order they were
+   *   produced; positions for which no frame was available are null.
+   *   Returns null if no frame at all could be obtained.
+   */
+  public List<String> pollNextFrames(int count)
+  {
+    List<String> frames = new ArrayList<String>(count);
+    boolean empty = true;
+    for (int i = 0; i < count; i++)
+    {
+      BitSequence bs = pollNextFrame();
+      if (bs == null)
+      {
+        frames.add(null);
+      }
+      else
+      {
+        frames.add(bs.toBase64());
+        empty = false;
+      }
+    }
+    if (empty)
+    {
+      return null;
+    }
+    return frames;
+  }
+  
   protected abstract BitSequence pollNextFrameLake();
   
   protected abstract BitSequence pollNextFrameStream();
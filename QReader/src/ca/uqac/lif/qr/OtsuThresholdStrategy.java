@@ -0,0 +1,206 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.qr;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * Predicts the binarization threshold from the histogram of an image.
+ * The histogram is computed in a single pass over the luminance values;
+ * the cut between dark and light pixels is then found with
+ * <a href="http://en.wikipedia.org/wiki/Otsu%27s_method">Otsu's
+ * method</a>, which picks the value that maximizes the variance between
+ * the two classes of pixels.
+ * <p>
+ * A picture of a code is normally bimodal: one peak for the dark
+ * modules, one for the light ones. Optionally, the cut is moved to the
+ * lowest point of the (smoothed) histogram between the two peaks on
+ * each side of Otsu's value, which is more robust when one class of
+ * pixels is much larger than the other.
+ * @author sylvain
+ *
+ */
+public class OtsuThresholdStrategy implements ThresholdStrategy
+{
+  /**
+   * Whether to refine Otsu's value by looking for the valley between
+   * the two peaks of the histogram
+   */
+  protected boolean m_findValley = true;
+  
+  /**
+   * The radius of the moving average used to smooth the histogram
+   * when looking for the valley
+   */
+  protected static final int SMOOTHING_RADIUS = 4;
+  
+  public OtsuThresholdStrategy()
+  {
+    super();
+  }
+  
+  /**
+   * Sets whether to refine Otsu's value by looking for the valley
+   * between the two peaks of the histogram
+   * @param b Set to true to look for the valley
+   */
+  public void setFindValley(boolean b)
+  {
+    m_findValley = b;
+  }
+  
+  @Override
+  public int getThreshold(LuminanceSource source)
+  {
+    int[] histogram = getHistogram(source);
+    int cut = getOtsuCut(histogram);
+    if (cut < 0)
+    {
+      return -1;
+    }
+    if (m_findValley)
+    {
+      cut = getValley(histogram, cut);
+    }
+    // Pixels up to the cut are black. The binarizer makes a pixel black
+    // when 256 - luminance > threshold, hence the conversion.
+    return Math.min(255, Math.max(1, 255 - cut));
+  }
+  
+  /**
+   * Computes the histogram of the luminance values of an image
+   * @param source The image
+   * @return An array of 256 pixel counts
+   */
+  protected static int[] getHistogram(LuminanceSource source)
+  {
+    int[] histogram = new int[256];
+    byte[] luminances = source.getMatrix();
+    int size = source.getWidth() * source.getHeight();
+    for (int i = 0; i < size; i++)
+    {
+      histogram[luminances[i] & 0xff]++;
+    }
+    return histogram;
+  }
+  
+  /**
+   * Finds the cut that maximizes the between-class variance of a
+   * histogram
+   * @param histogram The histogram
+   * @return The highest luminance of the dark class, or -1 if the
+   *   histogram has a single value
+   */
+  protected static int getOtsuCut(int[] histogram)
+  {
+    long total = 0;
+    long sum = 0;
+    for (int i = 0; i < histogram.length; i++)
+    {
+      total += histogram[i];
+      sum += (long) i * histogram[i];
+    }
+    long weight_dark = 0;
+    long sum_dark = 0;
+    double best_variance = -1;
+    int best_cut = -1;
+    for (int i = 0; i < histogram.length - 1; i++)
+    {
+      weight_dark += histogram[i];
+      if (weight_dark == 0)
+      {
+        continue;
+      }
+      long weight_light = total - weight_dark;
+      if (weight_light == 0)
+      {
+        break;
+      }
+      sum_dark += (long) i * histogram[i];
+      double mean_dark = (double) sum_dark / weight_dark;
+      double mean_light = (double) (sum - sum_dark) / weight_light;
+      double diff = mean_dark - mean_light;
+      double variance = (double) weight_dark * (double) weight_light * diff * diff;
+      if (variance > best_variance)
+      {
+        best_variance = variance;
+        best_cut = i;
+      }
+    }
+    return best_cut;
+  }
+  
+  /**
+   * Finds the lowest point of the histogram between the highest peak
+   * below a cut and the highest peak above it
+   * @param histogram The histogram
+   * @param cut The initial cut
+   * @return The position of the valley (the middle of it, if its
+   *   bottom is flat), or the initial cut if no valley could be found
+   */
+  protected static int getValley(int[] histogram, int cut)
+  {
+    int[] smooth = new int[histogram.length];
+    for (int i = 0; i < histogram.length; i++)
+    {
+      int from = Math.max(0, i - SMOOTHING_RADIUS);
+      int to = Math.min(histogram.length - 1, i + SMOOTHING_RADIUS);
+      int total = 0;
+      for (int j = from; j <= to; j++)
+      {
+        total += histogram[j];
+      }
+      smooth[i] = total / (to - from + 1);
+    }
+    int dark_peak = 0;
+    for (int i = 0; i <= cut; i++)
+    {
+      if (smooth[i] > smooth[dark_peak])
+      {
+        dark_peak = i;
+      }
+    }
+    int light_peak = cut + 1;
+    for (int i = cut + 1; i < smooth.length; i++)
+    {
+      if (smooth[i] > smooth[light_peak])
+      {
+        light_peak = i;
+      }
+    }
+    if (light_peak - dark_peak < 2)
+    {
+      return cut;
+    }
+    int valley = dark_peak + 1;
+    for (int i = dark_peak + 1; i < light_peak; i++)
+    {
+      if (smooth[i] < smooth[valley])
+      {
+        valley = i;
+      }
+    }
+    // If the bottom of the valley is flat, take its middle
+    int valley_end = valley;
+    while (valley_end + 1 < light_peak && smooth[valley_end + 1] == smooth[valley])
+    {
+      valley_end++;
+    }
+    return (valley + valley_end) / 2;
+  }
+}
@@ -0,0 +1,354 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.qr;
+
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decodes a sequence of images using a pool of worker threads. The
+ * decoder reads images from a source, hands them to the workers, and
+ * outputs the contents of each code in the same order as the images
+ * it was read from (or null when no code could be read from an
+ * image), so that they can be passed to a {@link FrameDecoder} as if
+ * they had been decoded one by one. Normal use is as follows:
+ * <ol>
+ * <li>The decoder is instantiated with an image source and a
+ *   {@link ZXingReader}, which is shared by all the worker threads</li>
+ * <li>Decoded contents are obtained by iterating over the decoder,
+ *   as long as {@link #hasNext()} returns true</li>
+ * <li>The worker threads are released with {@link #shutdown()}</li>
+ * </ol>
+ * @author sylvain
+ *
+ */
+public class ParallelDecoder implements Iterator<String>
+{
+  /**
+   * The source of images to decode
+   */
+  protected Iterator<BufferedImage> m_source;
+
+  /**
+   * Whether the source of images has been exhausted
+   */
+  protected boolean m_sourceOver = false;
+
+  /**
+   * The pool of worker threads
+   */
+  protected ExecutorService m_pool;
+
+  /**
+   * The frames being decoded, in the order they were read from the
+   * source. This acts as a reorder buffer: workers may finish out of
+   * order, but results are always taken from the head of the list.
+   */
+  protected LinkedList<Future<List<String>>> m_pending;
+
+  /**
+   * The contents taken from the head of the queue but not yet returned
+   * by {@link #next()}, when frames contain more than one code
+   */
+  protected LinkedList<String> m_decoded = new LinkedList<String>();
+
+  /**
+   * The number of codes in each frame
+   */
+  protected int m_codesPerFrame = 1;
+
+  /**
+   * The maximum number of frames read from the source but not yet
+   * returned by {@link #next()}
+   */
+  protected int m_queueDepth;
+
+  /**
+   * The code reader used by the worker threads
+   */
+  protected ZXingReader m_reader;
+
+  /**
+   * The detector used to find frames that repeat the previous one, if
+   * any
+   */
+  protected DuplicateFrameDetector m_detector = null;
+
+  /**
+   * The result of the last frame submitted to the workers that is not a
+   * repeat; repeated frames are compared to this frame
+   */
+  protected Future<List<String>> m_lastFuture = null;
+
+  /**
+   * Creates a new parallel decoder, with a queue depth of twice the
+   * number of threads
+   * @param source The source of images to decode
+   * @param reader The reader used by the workers
+   * @param threads The number of worker threads
+   */
+  public ParallelDecoder(Iterator<BufferedImage> source, ZXingReader reader, int threads)
+  {
+    this(source, reader, threads, 2 * threads);
+  }
+
+  /**
+   * Creates a new parallel decoder
+   * @param source The source of images to decode
+   * @param reader The reader used by the workers
+   * @param threads The number of worker threads
+   * @param queue_depth The maximum number of frames in flight at any
+   *   given time. Should be at least the number of threads, otherwise
+   *   some workers will remain idle.
+   */
+  public ParallelDecoder(Iterator<BufferedImage> source, ZXingReader reader, int threads, int queue_depth)
+  {
+    super();
+    m_source = source;
+    m_queueDepth = Math.max(1, queue_depth);
+    m_pending = new LinkedList<Future<List<String>>>();
+    m_reader = reader;
+    m_pool = Executors.newFixedThreadPool(Math.max(1, threads), new WorkerThreadFactory());
+  }
+
+  /**
+   * Sets the detector used to skip repeated frames. A frame that
+   * repeats the last one submitted to the workers gets the same result
+   * as that frame, provided a code could be read from it. Otherwise the
+   * repeated frame is decoded as well, as it would be if frames were
+   * decoded one by one: only a frame that decoded successfully is used
+   * as a reference.
+   * @param detector The detector, or null to decode every frame
+   */
+  public void setDuplicateDetector(DuplicateFrameDetector detector)
+  {
+    m_detector = detector;
+  }
+
+  /**
+   * Sets the number of codes in each frame. When greater than 1, all
+   * the codes of a frame are read, and returned one after the other in
+   * reading order; the codes that could not be read are returned as
+   * null.
+   * @param codes The number of codes
+   */
+  public void setCodesPerFrame(int codes)
+  {
+    m_codesPerFrame = Math.max(1, codes);
+  }
+
+  @Override
+  public boolean hasNext()
+  {
+    if (!m_decoded.isEmpty())
+    {
+      return true;
+    }
+    fillQueue();
+    return !m_pending.isEmpty();
+  }
+
+  @Override
+  public String next()
+  {
+    if (!m_decoded.isEmpty())
+    {
+      return m_decoded.removeFirst();
+    }
+    fillQueue();
+    if (m_pending.isEmpty())
+    {
+      return null;
+    }
+    Future<List<String>> head = m_pending.removeFirst();
+    List<String> data = null;
+    try
+    {
+      data = head.get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch (ExecutionException e)
+    {
+      // Decoding crashed: count the frame as lost
+      data = null;
+    }
+    if (data == null)
+    {
+      m_decoded.addAll(Collections.<String>nCopies(m_codesPerFrame, null));
+    }
+    else
+    {
+      m_decoded.addAll(data);
+    }
+    // Replace the frame we just took with a new one
+    fillQueue();
+    return m_decoded.removeFirst();
+  }
+
+  @Override
+  public void remove()
+  {
+    // Unsupported
+  }
+
+  /**
+   * Stops the worker threads. Frames that are still in the queue are
+   * discarded.
+   */
+  public void shutdown()
+  {
+    for (Future<List<String>> f : m_pending)
+    {
+      f.cancel(true);
+    }
+    m_pending.clear();
+    m_decoded.clear();
+    m_pool.shutdownNow();
+  }
+
+  /**
+   * Reads images from the source and submits them to the workers,
+   * until the queue is full or the source is exhausted
+   */
+  protected void fillQueue()
+  {
+    while (!m_sourceOver && m_pending.size() < m_queueDepth)
+    {
+      if (!m_source.hasNext())
+      {
+        m_sourceOver = true;
+        break;
+      }
+      BufferedImage img = m_source.next();
+      if (img == null)
+      {
+        // Another way of checking if frames remain
+        m_sourceOver = true;
+        break;
+      }
+      if (m_detector != null)
+      {
+        if (m_detector.isRepeat(img) && m_lastFuture != null)
+        {
+          m_pending.addLast(m_pool.submit(new RepeatTask(img, m_lastFuture)));
+          continue;
+        }
+        m_detector.acceptFrame();
+      }
+      m_lastFuture = m_pool.submit(new DecodeTask(img));
+      m_pending.addLast(m_lastFuture);
+    }
+  }
+
+  /**
+   * Decodes a single image in a worker thread
+   */
+  protected class DecodeTask implements Callable<List<String>>
+  {
+    protected final BufferedImage m_image;
+
+    public DecodeTask(BufferedImage img)
+    {
+      super();
+      m_image = img;
+    }
+
+    @Override
+    public List<String> call()
+    {
+      if (m_codesPerFrame > 1)
+      {
+        return m_reader.readCodes(m_image, m_codesPerFrame);
+      }
+      return Collections.singletonList(m_reader.readCode(m_image));
+    }
+  }
+
+  /**
+   * Gives a repeated frame the result of its reference frame, or decodes
+   * it if no code could be read from the reference frame. Since the pool
+   * takes tasks in the order they are submitted, the reference frame is
+   * always being decoded (or done) by another worker when this task
+   * starts waiting for it.
+   */
+  protected class RepeatTask extends DecodeTask
+  {
+    protected final Future<List<String>> m_reference;
+
+    public RepeatTask(BufferedImage img, Future<List<String>> reference)
+    {
+      super(img);
+      m_reference = reference;
+    }
+
+    @Override
+    public List<String> call()
+    {
+      List<String> data = null;
+      try
+      {
+        data = m_reference.get();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      catch (ExecutionException e)
+      {
+        data = null;
+      }
+      if (data != null && DuplicateFrameDetector.containsCode(data))
+      {
+        return data;
+      }
+      // The reference frame was lost: this frame is not a repeat of the
+      // last frame that decoded successfully, so read it
+      return super.call();
+    }
+  }
+
+  /**
+   * Creates daemon worker threads, so that a decoder that is never
+   * shut down does not prevent the program from exiting
+   */
+  protected static class WorkerThreadFactory implements ThreadFactory
+  {
+    protected int m_count = 0;
+
+    @Override
+    public synchronized Thread newThread(Runnable r)
+    {
+      Thread th = new Thread(r, "decoder-" + m_count++);
+      th.setDaemon(true);
+      return th;
+    }
+  }
+}
@@ -0,0 +1,277 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.qr;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * Luminance source that reads the bytes of an image directly from its
+ * raster. ZXing's own <code>BufferedImageLuminanceSource</code> draws
+ * the image into a new gray image, and then hands out a copy of that
+ * image's bytes; this source writes the gray values straight into the
+ * array it keeps, which can also be provided by the caller and reused
+ * from one frame to the next.
+ * <ul>
+ * <li>Gray images are not converted at all: when the raster holds
+ *   exactly the pixels of the image, its array is used as is</li>
+ * <li><code>TYPE_3BYTE_BGR</code> images (such as the frames produced by
+ *   {@link ca.uqac.lif.media.VideoFrameReader}) are converted by Java2D's
+ *   native BGR-to-gray loop, which only uses integer arithmetic and is
+ *   faster than the same computation written in Java. The values are
+ *   hence the same as with ZXing's source.</li>
+ * </ul>
+ * Use {@link #isSupported(BufferedImage)} to check whether an image can
+ * be read by this source.
+ * @author sylvain
+ *
+ */
+public class RasterLuminanceSource extends LuminanceSource
+{
+  /**
+   * The luminance values, one byte per pixel
+   */
+  protected final byte[] m_luminances;
+
+  /**
+   * The width of a row in the array of luminance values
+   */
+  protected final int m_dataWidth;
+
+  /**
+   * The horizontal offset of this source in the array
+   */
+  protected final int m_left;
+
+  /**
+   * The vertical offset of this source in the array
+   */
+  protected final int m_top;
+
+  /**
+   * The colour model of the gray images colour images are drawn into
+   */
+  protected static final ColorModel s_grayModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+  /**
+   * Creates a luminance source from an image
+   * @param img The image. It must be supported by this source.
+   */
+  public RasterLuminanceSource(BufferedImage img)
+  {
+    this(img, null);
+  }
+
+  /**
+   * Creates a luminance source from an image, writing the converted
+   * values in an existing array
+   * @param img The image. It must be supported by this source.
+   * @param buffer The array to write the luminance values into. It
+   *   is only used if it is large enough and the image actually needs
+   *   to be converted; otherwise it can be null.
+   */
+  public RasterLuminanceSource(BufferedImage img, byte[] buffer)
+  {
+    super(img.getWidth(), img.getHeight());
+    int width = img.getWidth();
+    int height = img.getHeight();
+    Raster raster = img.getRaster();
+    ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+    int pixel_stride = model.getPixelStride();
+    int scanline_stride = model.getScanlineStride();
+    int[] band_offsets = model.getBandOffsets();
+    // Position of the first pixel, taking into account images that are
+    // a part of a larger raster
+    int start = raster.getDataBuffer().getOffset()
+        - raster.getSampleModelTranslateY() * scanline_stride
+        - raster.getSampleModelTranslateX() * pixel_stride;
+    if (model.getNumBands() == 1 && pixel_stride == 1 && scanline_stride == width && start + band_offsets[0] == 0)
+    {
+      // Gray image laid out exactly as we need it
+      m_luminances = ((DataBufferByte) raster.getDataBuffer()).getData();
+    }
+    else
+    {
+      if (buffer == null || buffer.length < width * height)
+      {
+        buffer = new byte[width * height];
+      }
+      if (model.getNumBands() == 1)
+      {
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        copyGray(data, start + band_offsets[0], pixel_stride, scanline_stride, buffer, width, height);
+      }
+      else
+      {
+        convertColour(img, buffer, width, height);
+      }
+      m_luminances = buffer;
+    }
+    m_dataWidth = width;
+    m_left = 0;
+    m_top = 0;
+  }
+
+  /**
+   * Copies the pixels of a gray raster
+   * @param data The bytes of the raster
+   * @param start The position of the first pixel in the raster
+   * @param pixel_stride The distance between two pixels in the raster
+   * @param scanline_stride The distance between two rows in the raster
+   * @param out The array of luminance values
+   * @param width The width of the image
+   * @param height The height of the image
+   */
+  protected static void copyGray(byte[] data, int start, int pixel_stride, int scanline_stride, byte[] out, int width, int height)
+  {
+    for (int y = 0; y < height; y++)
+    {
+      int in = start + y * scanline_stride;
+      if (pixel_stride == 1)
+      {
+        System.arraycopy(data, in, out, y * width, width);
+        continue;
+      }
+      int end = (y + 1) * width;
+      for (int i = y * width; i < end; i++)
+      {
+        out[i] = data[in];
+        in += pixel_stride;
+      }
+    }
+  }
+
+  /**
+   * Converts a colour image to gray, by drawing it into a gray image
+   * whose raster is backed by the array of luminance values
+   * @param img The image
+   * @param out The array of luminance values
+   * @param width The width of the image
+   * @param height The height of the image
+   */
+  protected static void convertColour(BufferedImage img, byte[] out, int width, int height)
+  {
+    WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(out, width * height), width, height, width, 1, new int[]{0}, null);
+    BufferedImage gray = new BufferedImage(s_grayModel, raster, false, null);
+    Graphics2D g = gray.createGraphics();
+    g.drawImage(img, 0, 0, null);
+    g.dispose();
+  }
+
+  /**
+   * Creates a luminance source over a part of an array of luminance
+   * values
+   * @param luminances The array of luminance values
+   * @param data_width The width of a row in the array
+   * @param left The horizontal offset of the source in the array
+   * @param top The vertical offset of the source in the array
+   * @param width The width of the source
+   * @param height The height of the source
+   */
+  protected RasterLuminanceSource(byte[] luminances, int data_width, int left, int top, int width, int height)
+  {
+    super(width, height);
+    m_luminances = luminances;
+    m_dataWidth = data_width;
+    m_left = left;
+    m_top = top;
+  }
+
+  /**
+   * Checks whether an image can be read by this luminance source
+   * @param img The image
+   * @return true if the image is a <code>TYPE_3BYTE_BGR</code> or
+   *   <code>TYPE_BYTE_GRAY</code> image whose bytes can be accessed
+   *   directly
+   */
+  public static boolean isSupported(BufferedImage img)
+  {
+    int type = img.getType();
+    if (type != BufferedImage.TYPE_3BYTE_BGR && type != BufferedImage.TYPE_BYTE_GRAY)
+    {
+      return false;
+    }
+    Raster raster = img.getRaster();
+    SampleModel model = raster.getSampleModel();
+    return raster.getDataBuffer() instanceof DataBufferByte
+        && model instanceof ComponentSampleModel
+        && raster.getDataBuffer().getNumBanks() == 1;
+  }
+
+  @Override
+  public byte[] getRow(int y, byte[] row)
+  {
+    if (y < 0 || y >= getHeight())
+    {
+      throw new IllegalArgumentException("Requested row is outside the image: " + y);
+    }
+    int width = getWidth();
+    if (row == null || row.length < width)
+    {
+      row = new byte[width];
+    }
+    System.arraycopy(m_luminances, (y + m_top) * m_dataWidth + m_left, row, 0, width);
+    return row;
+  }
+
+  @Override
+  public byte[] getMatrix()
+  {
+    int width = getWidth();
+    int height = getHeight();
+    if (m_left == 0 && m_top == 0 && width == m_dataWidth && m_luminances.length == width * height)
+    {
+      // The array holds exactly this image
+      return m_luminances;
+    }
+    byte[] matrix = new byte[width * height];
+    for (int y = 0; y < height; y++)
+    {
+      System.arraycopy(m_luminances, (y + m_top) * m_dataWidth + m_left, matrix, y * width, width);
+    }
+    return matrix;
+  }
+
+  @Override
+  public boolean isCropSupported()
+  {
+    return true;
+  }
+
+  @Override
+  public LuminanceSource crop(int left, int top, int width, int height)
+  {
+    if (left < 0 || top < 0 || left + width > getWidth() || top + height > getHeight())
+    {
+      throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+    }
+    return new RasterLuminanceSource(m_luminances, m_dataWidth, m_left + left, m_top + top, width, height);
+  }
+}
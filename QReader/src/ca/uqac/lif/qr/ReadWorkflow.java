@@ -1,7 +1,11 @@
 package ca.uqac.lif.qr;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -18,9 +22,15 @@ import org.apache.commons.cli.PosixParser;
 import ca.uqac.info.buffertannen.message.BitSequence;
 import ca.uqac.info.buffertannen.message.SchemaElement;
 import ca.uqac.info.buffertannen.protocol.Receiver;
+import ca.uqac.info.buffertannen.protocol.Sender;
 import ca.uqac.lif.media.FilenameListIterator;
+import ca.uqac.lif.media.ParallelImageLoader;
+import ca.uqac.lif.media.PrefetchIterator;
+import ca.uqac.lif.media.RawFrameIterator;
+import ca.uqac.lif.media.SpoolDirectoryIterator;
 import ca.uqac.lif.media.VideoFrameIterator;
 import ca.uqac.lif.media.VideoFrameReader;
+import ca.uqac.lif.media.VideoLuminanceReader;
 import ca.uqac.lif.util.StoppableRunnable;
 
 import com.google.zxing.BarcodeFormat;
@@ -29,6 +39,13 @@ public class ReadWorkflow extends FrontEnd
 {
   protected static final Options s_options = getOptions();
   
+  /**
+   * The maximum number of frames read in advance when frames are taken
+   * from the luminance plane, since each of them needs an image of
+   * its own in the reader's ring
+   */
+  protected static final int PREFETCH_RING_FRAMES = 8;
+  
   /**
    * Reads command line arguments and performs actions for a "read"
    * operation (i.e. decoding frames from a source). 
@@ -40,6 +57,22 @@ public class ReadWorkflow extends FrontEnd
     // Setup default values
     int fps = 30;
     boolean in_binary = false;
+    int num_threads = 1;
+    int queue_depth = -1;
+    int grid_size = 1;
+    boolean shed_frames = false;
+    boolean pipeline = false;
+    boolean luminance_only = false;
+    long prefetch_bytes = 0;
+    int num_shards = 1;
+    int num_loaders = 0;
+    String watch_dir = null;
+    String archive_dir = null;
+    boolean delete_frames = false;
+    boolean read_stdin = false;
+    int raw_width = 0;
+    int raw_height = 0;
+    DuplicateFrameDetector detector = null;
     // Setup and parse command line options
     Options options = getOptions();
 
@@ -92,6 +125,18 @@ public class ReadWorkflow extends FrontEnd
       {
         reader.setGuessThreshold(false);
       }
+      else if (th.compareToIgnoreCase("otsu") == 0)
+      {
+        reader.useThresholdBinarizer(true);
+        reader.setThresholdStrategy(new OtsuThresholdStrategy());
+        reader.setGuessThreshold(true);
+      }
+      else if (th.compareToIgnoreCase("track") == 0)
+      {
+        reader.useThresholdBinarizer(true);
+        reader.setThresholdTracker(new ThresholdTracker(new OtsuThresholdStrategy()));
+        reader.setGuessThreshold(true);
+      }
       else
       {
         int binarization_threshold = Integer.parseInt(c_line.getOptionValue("threshold"));
@@ -125,10 +170,141 @@ public class ReadWorkflow extends FrontEnd
         System.err.println("Invalid barcode format");
       }
     }
+    if (c_line.hasOption("prefetch"))
+    {
+      prefetch_bytes = Long.parseLong(c_line.getOptionValue("prefetch")) * 1024 * 1024;
+      if (prefetch_bytes < 1)
+      {
+        System.err.println("ERROR: prefetch size must be at least 1 MB.");
+        return ERR_ARGUMENTS;
+      }
+    }
     if (c_line.hasOption("purecode"))
     {
       reader.setPureCode(true);
     }
+    if (c_line.hasOption("trackregion"))
+    {
+      reader.setTrackRegion(true);
+    }
+    if (c_line.hasOption("grid"))
+    {
+      grid_size = Integer.parseInt(c_line.getOptionValue("grid"));
+      if (grid_size < 1)
+      {
+        System.err.println("ERROR: grid size must be at least 1.");
+        return ERR_ARGUMENTS;
+      }
+    }
+    if (c_line.hasOption("shards"))
+    {
+      num_shards = Integer.parseInt(c_line.getOptionValue("shards"));
+      if (num_shards < 1)
+      {
+        System.err.println("ERROR: number of shards must be at least 1.");
+        return ERR_ARGUMENTS;
+      }
+    }
+    if (c_line.hasOption("shedframes"))
+    {
+      shed_frames = true;
+    }
+    if (c_line.hasOption("pipeline"))
+    {
+      pipeline = true;
+    }
+    if (c_line.hasOption("skiprepeats"))
+    {
+      detector = new DuplicateFrameDetector();
+    }
+    if (c_line.hasOption("pyramid"))
+    {
+      reader.setPyramid(true);
+    }
+    if (c_line.hasOption("reusebuffers"))
+    {
+      reader.setReuseBuffers(true);
+    }
+    if (c_line.hasOption("loaders"))
+    {
+      num_loaders = Integer.parseInt(c_line.getOptionValue("loaders"));
+      if (num_loaders < 1)
+      {
+        System.err.println("ERROR: number of loader threads must be at least 1.");
+        return ERR_ARGUMENTS;
+      }
+    }
+    if (c_line.hasOption("luminance"))
+    {
+      luminance_only = true;
+    }
+    if (c_line.hasOption("watch"))
+    {
+      watch_dir = c_line.getOptionValue("watch");
+      if (!new File(watch_dir).isDirectory())
+      {
+        System.err.println("ERROR: " + watch_dir + " is not a directory.");
+        return ERR_ARGUMENTS;
+      }
+    }
+    if (c_line.hasOption("archive"))
+    {
+      archive_dir = c_line.getOptionValue("archive");
+      if (!new File(archive_dir).isDirectory())
+      {
+        System.err.println("ERROR: " + archive_dir + " is not a directory.");
+        return ERR_ARGUMENTS;
+      }
+    }
+    if (c_line.hasOption("deleteframes"))
+    {
+      delete_frames = true;
+    }
+    if (c_line.hasOption("stdin"))
+    {
+      read_stdin = true;
+    }
+    if (c_line.hasOption("rawsize"))
+    {
+      String[] size = c_line.getOptionValue("rawsize").toLowerCase().split("x");
+      if (size.length == 2)
+      {
+        raw_width = Integer.parseInt(size[0]);
+        raw_height = Integer.parseInt(size[1]);
+      }
+      if (raw_width < 1 || raw_height < 1)
+      {
+        System.err.println("ERROR: raw frame size must be of the form WxH.");
+        return ERR_ARGUMENTS;
+      }
+    }
+    if (c_line.hasOption("parallelguess"))
+    {
+      reader.setParallelGuess(true);
+    }
+    if (c_line.hasOption("threads"))
+    {
+      num_threads = Integer.parseInt(c_line.getOptionValue("threads"));
+      if (num_threads < 1)
+      {
+        System.err.println("ERROR: number of threads must be at least 1.");
+        return ERR_ARGUMENTS;
+      }
+    }
+    if (c_line.hasOption("queue"))
+    {
+      queue_depth = Integer.parseInt(c_line.getOptionValue("queue"));
+      if (queue_depth < 1)
+      {
+        System.err.println("ERROR: queue depth must be at least 1.");
+        return ERR_ARGUMENTS;
+      }
+    }
+    if (queue_depth < 0)
+    {
+      // Default: enough frames to keep every thread busy
+      queue_depth = 2 * num_threads;
+    }
     //fd.setProcessEvents(!dont_process);
 
     Iterator<BufferedImage> image_source = null;
@@ -137,66 +313,221 @@ public class ReadWorkflow extends FrontEnd
     filenames.addAll(remaining_args);
     filenames.removeFirst(); // Since arg 0 is "read"
     String first_filename = filenames.peek(); 
-    if (first_filename != null)
+    SpoolDirectoryIterator spool = null;
+    RawFrameIterator raw = null;
+    // Each frame in flight needs its own image in a ring, including
+    // those read in advance
+    int ring_size = (num_threads > 1 ? queue_depth : 1) + 1;
+    if (prefetch_bytes > 0)
+    {
+      ring_size += PREFETCH_RING_FRAMES + 1;
+    }
+    if (watch_dir != null)
+    {
+      // Frames are written into a directory while we read them
+      try
+      {
+        spool = new SpoolDirectoryIterator(new File(watch_dir));
+      }
+      catch (IOException e)
+      {
+        System.err.println("ERROR: cannot watch " + watch_dir + ": " + e.getMessage());
+        return ERR_IO;
+      }
+      if (archive_dir != null)
+      {
+        spool.setArchiveDirectory(new File(archive_dir));
+      }
+      spool.setDeleteProcessed(delete_frames);
+    }
+    else if (read_stdin || (first_filename != null && (raw_width > 0 || isRawVideoFile(first_filename))))
+    {
+      // Uncompressed frames from a pipe: raw gray if a size is given,
+      // YUV4MPEG2 otherwise
+      try
+      {
+        InputStream in = null;
+        if (read_stdin)
+        {
+          in = new FileInputStream(FileDescriptor.in);
+        }
+        else
+        {
+          in = new FileInputStream(first_filename);
+        }
+        if (raw_width > 0)
+        {
+          raw = new RawFrameIterator(in, raw_width, raw_height, ring_size);
+        }
+        else
+        {
+          raw = new RawFrameIterator(in, ring_size);
+        }
+      }
+      catch (IOException e)
+      {
+        System.err.println("ERROR: cannot read frames: " + e.getMessage());
+        return ERR_IO;
+      }
+    }
+    if (first_filename != null || spool != null || raw != null)
     {
       // We read from some file
-      if (isVideoFile(first_filename))
+      if (spool != null)
+      {
+        image_source = spool;
+      }
+      else if (raw != null)
+      {
+        image_source = raw;
+      }
+      else if (num_shards > 1 && isVideoFile(first_filename))
+      {
+        // Decode intervals of the video in parallel, each with its own
+        // reader
+        ShardedDecoder sd = new ShardedDecoder(first_filename, reader, num_shards);
+        sd.setLuminance(luminance_only);
+        sd.setCodesPerFrame(grid_size * grid_size);
+        while (sd.hasNext())
+        {
+          // Frame order only matters until we know the sender is in
+          // lake mode
+          sd.setOrdered(recv.getSendingMode() != Sender.SendingMode.LAKE);
+          fd.printReadStatistics(true);
+          String data = sd.next();
+          fd.setNewFrame(data);
+          writeOutput(fd, in_binary);
+        }
+        sd.shutdown();
+        return ERR_OK;
+      }
+      else if (isVideoFile(first_filename))
       {
         // File is a video: iterate over its frames
-        VideoFrameReader vfr = new VideoFrameReader(first_filename);
+        VideoFrameReader vfr = null;
+        if (luminance_only)
+        {
+          vfr = new VideoLuminanceReader(first_filename, ring_size);
+        }
+        else
+        {
+          vfr = new VideoFrameReader(first_filename);
+        }
         image_source = new VideoFrameIterator(vfr);
         //num_files = vfr.getNumFrames(fps);
       }
       else
       {
         // File is an image: iterate over each filename passed as argument
-        image_source = new FilenameListIterator(filenames);
+        if (num_loaders > 0)
+        {
+          // Read the next files in advance, a few per loader thread
+          image_source = new ParallelImageLoader(filenames, num_loaders, 2 * num_loaders);
+        }
+        else
+        {
+          image_source = new FilenameListIterator(filenames);
+        }
         //num_files = filenames.size();
       }
-      while (image_source.hasNext())
+      if (prefetch_bytes > 0)
       {
-        BufferedImage img = image_source.next();
-        if (img == null)
+        // Read the next frames while the current ones are decoded
+        PrefetchIterator prefetch = new PrefetchIterator(image_source, prefetch_bytes);
+        if (luminance_only || raw != null)
         {
-          // Another way of checking if frames remain
-          break;
+          // Frames come from a ring that must not wrap around
+          prefetch.setMaxFrames(PREFETCH_RING_FRAMES);
         }
-        fd.printReadStatistics(true);
-        String data = reader.readCode(img);
-        fd.setNewFrame(data);
-        if (in_binary)
+        image_source = prefetch;
+      }
+      if (num_threads > 1)
+      {
+        // Decode frames in parallel; the decoder gives them back in order
+        ParallelDecoder pd = new ParallelDecoder(image_source, reader, num_threads, queue_depth);
+        pd.setDuplicateDetector(detector);
+        pd.setCodesPerFrame(grid_size * grid_size);
+        while (pd.hasNext())
         {
-          // Poll receiver's binary buffer and write whatever bytes that
-          // can be written
-          BitSequence recv_bs = fd.pollBinaryBuffer(-1);
-          byte[] bytes = recv_bs.toByteArray();
-          try
-          {
-            System.out.write(bytes);
-          }
-          catch (IOException e)
+          if (spool != null && fd.dataIsReady())
           {
-            e.printStackTrace();
+            // The whole message was received: stop watching
+            break;
           }
+          fd.printReadStatistics(true);
+          String data = pd.next();
+          fd.setNewFrame(data);
+          writeOutput(fd, in_binary);
         }
-        else
+        pd.shutdown();
+      }
+      else
+      {
+        while (image_source.hasNext())
         {
-          // Poll receiver's message buffer and write whatever messages
-          // that can be written
-          SchemaElement se = null;
-          do
+          if (spool != null && fd.dataIsReady())
           {
-            se = fd.pollMessage();
-            System.out.println(se.toString());
-          } while (se != null);
+            // The whole message was received: stop watching
+            break;
+          }
+          BufferedImage img = image_source.next();
+          if (img == null)
+          {
+            // Another way of checking if frames remain
+            break;
+          }
+          if (grid_size > 1)
+          {
+            // Each code of the grid is handled as a frame of its own
+            List<String> codes = null;
+            if (detector != null)
+            {
+              codes = detector.readCodes(reader, img, grid_size * grid_size);
+            }
+            else
+            {
+              codes = reader.readCodes(img, grid_size * grid_size);
+            }
+            for (String data : codes)
+            {
+              fd.printReadStatistics(true);
+              fd.setNewFrame(data);
+              writeOutput(fd, in_binary);
+            }
+            continue;
+          }
+          fd.printReadStatistics(true);
+          String data = null;
+          if (detector != null)
+          {
+            data = detector.readCode(reader, img);
+          }
+          else
+          {
+            data = reader.readCode(img);
+          }
+          fd.setNewFrame(data);
+          writeOutput(fd, in_binary);
         }
       }
+      if (spool != null)
+      {
+        spool.stop();
+      }
     }
     else
     {
       // Read from camera
       CameraDisplayFrame window = new CameraDisplayFrame();
       CameraWindowUpdater wu = new CameraWindowUpdater(window, reader, fd, 1000/fps);
+      wu.setDuplicateDetector(detector);
+      wu.setCodesPerFrame(grid_size * grid_size);
+      wu.setShedFrames(shed_frames);
+      wu.setGrayCapture(luminance_only);
+      if (pipeline)
+      {
+        wu.setPipeline(num_threads);
+      }
       wu.setStartState(StoppableRunnable.LoopStatus.ACTIVE);
       window.setVisible(true);
       Thread th = new Thread(wu);
@@ -205,6 +536,7 @@ public class ReadWorkflow extends FrontEnd
       {
         CameraWindowUpdater.safeSleep(1000);
       }
+      wu.stopPipeline();
     }
     // Done!
     return ERR_OK;
@@ -227,6 +559,14 @@ public class ReadWorkflow extends FrontEnd
             "Don't output decoded contents to stdout, just print stats")
             .create();
     options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("prefetch")
+        .withArgName("x")
+        .hasArg()
+        .withDescription(
+            "Read up to x MB of frames in advance in a separate thread")
+            .create();
+    options.addOption(opt);
     opt = OptionBuilder
         .withLongOpt("purecode")
         .withDescription(
@@ -238,7 +578,7 @@ public class ReadWorkflow extends FrontEnd
         .withArgName("x")
         .hasArg()
         .withDescription(
-            "Set binarization threshold to x ('guess', or between 0 and 255, default 128)")
+            "Set binarization threshold to x ('guess', 'otsu', 'track', or between 0 and 255, default 128)")
             .create();
     options.addOption(opt);
     opt = OptionBuilder
@@ -263,9 +603,169 @@ public class ReadWorkflow extends FrontEnd
             "Verbose messages with level x")
             .create();
     options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("trackregion")
+        .withDescription(
+            "Look for each code where the previous one was found first")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("grid")
+        .withArgName("n")
+        .hasArg()
+        .withDescription(
+            "Read n x n codes in each frame (default: 1)")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("shards")
+        .withArgName("x")
+        .hasArg()
+        .withDescription(
+            "Split a video into x intervals of time decoded in parallel")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("shedframes")
+        .withDescription(
+            "When reading from a camera, only decode the most recent picture")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("pipeline")
+        .withDescription(
+            "When reading from a camera, capture, decode and display frames in separate threads")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("skiprepeats")
+        .withDescription(
+            "Don't decode frames that repeat the last decoded one")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("pyramid")
+        .withDescription(
+            "Look for codes in downsampled frames before full resolution")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("reusebuffers")
+        .withDescription(
+            "Reuse image buffers across frames to reduce garbage collection")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("loaders")
+        .withArgName("x")
+        .hasArg()
+        .withDescription(
+            "Read image files in advance using x threads")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("watch")
+        .withArgName("dir")
+        .hasArg()
+        .withDescription(
+            "Read image files as they are written into directory dir")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("archive")
+        .withArgName("dir")
+        .hasArg()
+        .withDescription(
+            "With --watch, move files to directory dir once read")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("stdin")
+        .withDescription(
+            "Read raw or YUV4MPEG2 frames from stdin")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("rawsize")
+        .withArgName("WxH")
+        .hasArg()
+        .withDescription(
+            "Input frames are raw 8-bit gray pictures of size WxH")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("deleteframes")
+        .withDescription(
+            "With --watch, delete files once read")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("luminance")
+        .withDescription(
+            "Read the luminance of video or camera frames instead of converting them to colour")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("parallelguess")
+        .withDescription(
+            "Try thresholds concurrently when guessing")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("threads")
+        .withArgName("x")
+        .hasArg()
+        .withDescription(
+            "Decode files using x threads (default: 1)")
+            .create();
+    options.addOption(opt);
+    opt = OptionBuilder
+        .withLongOpt("queue")
+        .withArgName("x")
+        .hasArg()
+        .withDescription(
+            "Keep at most x frames in flight when decoding with multiple threads (default: twice the number of threads)")
+            .create();
+    options.addOption(opt);
     return options;
   }
   
+  /**
+   * Polls the receiver for the data decoded so far, and writes it
+   * to the standard output
+   * @param fd The frame decoder to poll
+   * @param in_binary Set to true if the frames encode blob segments
+   */
+  protected static void writeOutput(FrameDecoder fd, boolean in_binary)
+  {
+    if (in_binary)
+    {
+      // Poll receiver's binary buffer and write whatever bytes that
+      // can be written
+      BitSequence recv_bs = fd.pollBinaryBuffer(-1);
+      byte[] bytes = recv_bs.toByteArray();
+      try
+      {
+        System.out.write(bytes);
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+    }
+    else
+    {
+      // Poll receiver's message buffer and write whatever messages
+      // that can be written
+      SchemaElement se = fd.pollMessage();
+      while (se != null)
+      {
+        System.out.println(se.toString());
+        se = fd.pollMessage();
+      }
+    }
+  }
+  
   protected static String getFileExtension(String filename)
   {
     if (filename == null) {
@@ -300,6 +800,21 @@ public class ReadWorkflow extends FrontEnd
     return extension.compareToIgnoreCase("mp4") == 0 || extension.compareToIgnoreCase("avi") == 0 || extension.compareToIgnoreCase("mkv") == 0;
   }
   
+  /**
+   * Checks whether a file holds uncompressed frames, based on its
+   * extension
+   * @param filename The name of the file
+   * @return true if the file is a YUV4MPEG2 stream
+   */
+  protected static boolean isRawVideoFile(String filename)
+  {
+    if (filename == null)
+    {
+      return false;
+    }
+    return getFileExtension(filename).compareToIgnoreCase("y4m") == 0;
+  }
+  
   public static void showUsage()
   {
     HelpFormatter hf = new HelpFormatter();
@@ -0,0 +1,368 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.qr;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import ca.uqac.lif.media.VideoFrameReader;
+import ca.uqac.lif.media.VideoLuminanceReader;
+import ca.uqac.lif.media.VideoShardIterator;
+
+/**
+ * Decodes a video file by splitting it into intervals of time, and
+ * decoding each interval in its own thread with its own video reader.
+ * Unlike the {@link ParallelDecoder}, which parallelizes the decoding
+ * of codes but reads all frames from a single stream, this decoder
+ * also parallelizes the demultiplexing and decompression of the video.
+ * <p>
+ * The contents of the codes are returned in one of two orders:
+ * <ul>
+ * <li>In frame order, as if the video had been read by a single
+ *   reader: the contents of the first interval are returned first,
+ *   while the contents of the other intervals are kept until their
+ *   turn comes</li>
+ * <li>In the order in which they are decoded, taking contents from all
+ *   intervals as they come. This is suitable for lake mode, where
+ *   the receiver does not care about the order of frames.</li>
+ * </ul>
+ * The order can be changed at any time with {@link #setOrdered(boolean)}.
+ * @author sylvain
+ *
+ */
+public class ShardedDecoder implements Iterator<String>
+{
+  /**
+   * The name of the video file
+   */
+  protected String m_filename;
+
+  /**
+   * The reader whose settings are copied by each interval
+   */
+  protected ZXingReader m_reader;
+
+  /**
+   * The number of intervals
+   */
+  protected int m_shardCount;
+
+  /**
+   * The contents decoded in each interval and not yet returned
+   */
+  protected List<LinkedList<String>> m_results;
+
+  /**
+   * Whether each interval has been decoded completely
+   */
+  protected boolean[] m_shardDone;
+
+  /**
+   * The interval whose contents are returned, in frame order
+   */
+  protected int m_currentShard = 0;
+
+  /**
+   * The interval contents were last taken from, in decoding order
+   */
+  protected int m_lastShard = 0;
+
+  /**
+   * Whether to return contents in frame order
+   */
+  protected boolean m_ordered = true;
+
+  /**
+   * Whether to read frames from the luminance plane of the video
+   */
+  protected boolean m_luminance = false;
+
+  /**
+   * The number of codes in each frame
+   */
+  protected int m_codesPerFrame = 1;
+
+  /**
+   * The threads decoding the intervals, once started
+   */
+  protected Thread[] m_threads = null;
+
+  /**
+   * Creates a new sharded decoder
+   * @param filename The name of the video file
+   * @param reader The reader whose settings are used to decode codes.
+   *   Each interval uses a copy of it, so that the threshold and the
+   *   region of the code are tracked separately in each.
+   * @param shards The number of intervals
+   */
+  public ShardedDecoder(String filename, ZXingReader reader, int shards)
+  {
+    super();
+    m_filename = filename;
+    m_reader = reader;
+    m_shardCount = Math.max(1, shards);
+  }
+
+  /**
+   * Sets whether to return contents in frame order
+   * @param b Set to true for frame order, false to return contents
+   *   in the order they are decoded
+   */
+  public synchronized void setOrdered(boolean b)
+  {
+    m_ordered = b;
+  }
+
+  /**
+   * Sets whether to read frames from the luminance plane of the video,
+   * using a {@link VideoLuminanceReader}
+   * @param b Set to true to read the luminance plane
+   */
+  public void setLuminance(boolean b)
+  {
+    m_luminance = b;
+  }
+
+  /**
+   * Sets the number of codes in each frame
+   * @param codes The number of codes
+   */
+  public void setCodesPerFrame(int codes)
+  {
+    m_codesPerFrame = Math.max(1, codes);
+  }
+
+  @Override
+  public synchronized boolean hasNext()
+  {
+    start();
+    return waitForResult() >= 0;
+  }
+
+  @Override
+  public synchronized String next()
+  {
+    start();
+    int shard = waitForResult();
+    if (shard < 0)
+    {
+      return null;
+    }
+    m_lastShard = shard;
+    return m_results.get(shard).removeFirst();
+  }
+
+  @Override
+  public void remove()
+  {
+    // Unsupported
+  }
+
+  /**
+   * Stops the threads decoding the intervals
+   */
+  public synchronized void shutdown()
+  {
+    if (m_threads != null)
+    {
+      for (Thread th : m_threads)
+      {
+        th.interrupt();
+      }
+    }
+  }
+
+  /**
+   * Opens the video and starts one thread per interval, if this is not
+   * done yet
+   */
+  protected void start()
+  {
+    if (m_threads != null)
+    {
+      return;
+    }
+    VideoFrameReader first = createVideoReader();
+    long duration = first.getDuration();
+    int shards = m_shardCount;
+    if (duration <= 0)
+    {
+      // Intervals cannot be computed without the duration
+      shards = 1;
+    }
+    m_results = new ArrayList<LinkedList<String>>(shards);
+    m_shardDone = new boolean[shards];
+    m_threads = new Thread[shards];
+    for (int i = 0; i < shards; i++)
+    {
+      m_results.add(new LinkedList<String>());
+      long start = duration * i / shards;
+      long end = i == shards - 1 ? Long.MAX_VALUE : duration * (i + 1) / shards;
+      VideoFrameReader vfr = i == 0 ? first : createVideoReader();
+      m_threads[i] = new Thread(new ShardTask(i, new VideoShardIterator(vfr, start, end)), "shard-" + i);
+      m_threads[i].setDaemon(true);
+    }
+    for (Thread th : m_threads)
+    {
+      th.start();
+    }
+  }
+
+  /**
+   * Creates a reader for the video file
+   * @return The reader
+   */
+  protected VideoFrameReader createVideoReader()
+  {
+    if (m_luminance)
+    {
+      // Each interval decodes its frames one at a time
+      return new VideoLuminanceReader(m_filename, 2);
+    }
+    return new VideoFrameReader(m_filename);
+  }
+
+  /**
+   * Waits until some contents can be returned. Must be called while
+   * holding the lock on this object.
+   * @return The interval to take the next contents from, or -1 if all
+   *   intervals are done
+   */
+  protected int waitForResult()
+  {
+    while (true)
+    {
+      if (m_ordered)
+      {
+        while (m_currentShard < m_shardDone.length && m_results.get(m_currentShard).isEmpty() && m_shardDone[m_currentShard])
+        {
+          m_currentShard++;
+        }
+        if (m_currentShard >= m_shardDone.length)
+        {
+          return -1;
+        }
+        if (!m_results.get(m_currentShard).isEmpty())
+        {
+          return m_currentShard;
+        }
+      }
+      else
+      {
+        boolean all_done = true;
+        for (int k = 1; k <= m_shardDone.length; k++)
+        {
+          // Take turns between intervals, so that none lags behind
+          int i = (m_lastShard + k) % m_shardDone.length;
+          if (!m_results.get(i).isEmpty())
+          {
+            return i;
+          }
+          all_done = all_done && m_shardDone[i];
+        }
+        if (all_done)
+        {
+          return -1;
+        }
+      }
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Adds the contents decoded from a frame to the results of an
+   * interval
+   * @param shard The interval
+   * @param contents The contents of the codes of the frame
+   */
+  protected synchronized void addResults(int shard, List<String> contents)
+  {
+    m_results.get(shard).addAll(contents);
+    notifyAll();
+  }
+
+  /**
+   * Marks an interval as decoded completely
+   * @param shard The interval
+   */
+  protected synchronized void setDone(int shard)
+  {
+    m_shardDone[shard] = true;
+    notifyAll();
+  }
+
+  /**
+   * Decodes the frames of one interval
+   */
+  protected class ShardTask implements Runnable
+  {
+    protected final int m_shard;
+
+    protected final Iterator<BufferedImage> m_frames;
+
+    public ShardTask(int shard, Iterator<BufferedImage> frames)
+    {
+      super();
+      m_shard = shard;
+      m_frames = frames;
+    }
+
+    @Override
+    public void run()
+    {
+      ZXingReader reader = new ZXingReader(m_reader);
+      try
+      {
+        while (m_frames.hasNext() && !Thread.currentThread().isInterrupted())
+        {
+          BufferedImage img = m_frames.next();
+          if (img == null)
+          {
+            break;
+          }
+          List<String> contents = null;
+          if (m_codesPerFrame > 1)
+          {
+            contents = reader.readCodes(img, m_codesPerFrame);
+          }
+          else
+          {
+            contents = new LinkedList<String>();
+            contents.add(reader.readCode(img));
+          }
+          addResults(m_shard, contents);
+        }
+      }
+      finally
+      {
+        setDone(m_shard);
+      }
+    }
+  }
+}
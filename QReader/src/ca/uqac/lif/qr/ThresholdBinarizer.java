@@ -29,6 +29,16 @@ import com.google.zxing.common.BitMatrix;
  * between 0 (black) and 255 (white). A pixel will be converted to full
  * black if below the threshold value, and to full white if above the
  * threshold value.
+ * <p>
+ * The binarizer does no work when it is created. Rows requested by
+ * {@link #getBlackRow(int, BitArray)} are binarized on demand, and the
+ * full matrix is only built the first time {@link #getBlackMatrix()}
+ * is called. In both cases the image is scanned row by row, and
+ * pixels are packed 32 at a time into the words of the resulting
+ * bit array, rather than being set one bit at a time.
+ * <p>
+ * When given a {@link DecodeContext}, the binarizer takes its row
+ * buffers and its matrix from the context instead of allocating them.
  * @author sylvain
  *
  */
@@ -37,7 +47,22 @@ public class ThresholdBinarizer extends Binarizer
   protected byte[] m_bytes = null;
   protected int m_height = 0;
   protected int m_width = 0;
-  protected BitMatrix m_matrix;
+  protected BitMatrix m_matrix = null;
+  
+  /**
+   * The threshold to use for the binarization
+   */
+  protected int m_threshold;
+  
+  /**
+   * Buffer used to fetch single rows of luminance values from the source
+   */
+  protected byte[] m_rowBuffer = null;
+  
+  /**
+   * The context providing the buffers, if any
+   */
+  protected DecodeContext m_context = null;
   
   /**
    * Instantiates a binarizer from a luminance source (i.e.
@@ -62,44 +87,133 @@ public class ThresholdBinarizer extends Binarizer
     super(source);
     m_height = source.getHeight();
     m_width = source.getWidth();
-    m_bytes = source.getMatrix();
-    m_matrix = new BitMatrix(m_width, m_height);
-    for (int x = 0; x < m_width; x++)
-    {
-      for (int y = 0; y < m_height; y++)
-      {
-        int luminance = m_bytes[y * m_width + x] & 0xff;
-        //if (luminance > threshold)
-        if (256 - luminance > threshold)
-        {
-          m_matrix.set(x, y);
-        }
-      }
-    }
-
+    m_threshold = threshold;
+  }
+  
+  /**
+   * Instantiates a binarizer whose buffers are taken from a decoding
+   * context. The matrix it produces is only valid until the context is
+   * used by another binarizer.
+   * @param source The image to read from
+   * @param threshold The threshold to use for the binarization
+   *  (between 1 and 255)
+   * @param context The context providing the buffers
+   */
+  protected ThresholdBinarizer(LuminanceSource source, int threshold, DecodeContext context)
+  {
+    this(source, threshold);
+    m_context = context;
   }
 
   @Override
   public BitArray getBlackRow(int y, BitArray row) throws NotFoundException
   {
-    if (m_matrix == null || y > m_height)
+    if (y < 0 || y >= m_height)
     {
       throw NotFoundException.getNotFoundInstance();
     }
-    m_matrix.getRow(y, row);
+    if (m_matrix != null)
+    {
+      // The whole image has already been binarized
+      return m_matrix.getRow(y, row);
+    }
+    if (row == null || row.getSize() < m_width)
+    {
+      row = new BitArray(m_width);
+    }
+    else
+    {
+      row.clear();
+    }
+    if (m_bytes != null)
+    {
+      packRow(m_bytes, y * m_width, row);
+    }
+    else
+    {
+      if (m_context != null)
+      {
+        m_rowBuffer = m_context.getRowBuffer(m_width);
+      }
+      m_rowBuffer = getLuminanceSource().getRow(y, m_rowBuffer);
+      packRow(m_rowBuffer, 0, row);
+    }
     return row;
   }
 
   @Override
   public BitMatrix getBlackMatrix() throws NotFoundException
   {
+    if (m_matrix == null && m_context != null)
+    {
+      // Fetch the rows one by one rather than asking for the whole
+      // matrix, which the source may have to copy
+      LuminanceSource source = getLuminanceSource();
+      BitMatrix matrix = m_context.getMatrix(m_width, m_height);
+      byte[] buffer = m_context.getRowBuffer(m_width);
+      for (int y = 0; y < m_height; y++)
+      {
+        BitArray row = m_context.getRow(m_width);
+        buffer = source.getRow(y, buffer);
+        packRow(buffer, 0, row);
+        matrix.setRow(y, row);
+      }
+      m_matrix = matrix;
+    }
+    if (m_matrix == null)
+    {
+      if (m_bytes == null)
+      {
+        m_bytes = getLuminanceSource().getMatrix();
+      }
+      BitMatrix matrix = new BitMatrix(m_width, m_height);
+      BitArray row = new BitArray(m_width);
+      for (int y = 0; y < m_height; y++)
+      {
+        row.clear();
+        packRow(m_bytes, y * m_width, row);
+        matrix.setRow(y, row);
+      }
+      m_matrix = matrix;
+    }
     return m_matrix;
   }
+  
+  /**
+   * Binarizes a row of luminance values. Pixels are processed 32 at
+   * a time, and each group is written in a single operation into the
+   * corresponding word of the bit array.
+   * @param luminances The array containing the luminance values
+   * @param offset The position of the first pixel of the row in
+   *   the array
+   * @param row The bit array to write to. It is expected to be clear.
+   */
+  protected void packRow(byte[] luminances, int offset, BitArray row)
+  {
+    // A pixel is black when 256 - luminance > threshold, that is,
+    // when luminance < 256 - threshold
+    int cutoff = 256 - m_threshold;
+    for (int x = 0; x < m_width; x += 32)
+    {
+      int word = 0;
+      int end = Math.min(32, m_width - x);
+      int pos = offset + x;
+      for (int i = 0; i < end; i++)
+      {
+        // The sign bit of the difference is set only for black pixels
+        word |= (((luminances[pos + i] & 0xff) - cutoff) >>> 31) << i;
+      }
+      if (word != 0)
+      {
+        row.setBulk(x, word);
+      }
+    }
+  }
 
   @Override
   public Binarizer createBinarizer(LuminanceSource source)
   {
-    return new ThresholdBinarizer(source);
+    return new ThresholdBinarizer(source, m_threshold);
   }
 
 }
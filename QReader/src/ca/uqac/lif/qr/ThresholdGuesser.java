@@ -22,9 +22,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 
+import com.google.zxing.LuminanceSource;
 import com.google.zxing.Result;
 
 /**
@@ -37,6 +43,9 @@ import com.google.zxing.Result;
  *   number of images decoded by calling one of the {@link #guessThreshold}
  *   methods</li>
  * </ol>
+ * Images are converted to grayscale once, when they are added; all the
+ * thresholds tried by the guesser then work on the same luminance
+ * values.
  * @author sylvain
  *
  */
@@ -45,20 +54,44 @@ public class ThresholdGuesser
   /**
    * A list of images used as a decoding sample
    */
-  protected List<BufferedImage> m_sources;
+  protected List<LuminanceSource> m_sources;
   
   /**
    * An instance of QR code reader to use for the decoding
    */
   protected final ZXingReader s_decoder;
   
+  /**
+   * Whether to evaluate candidate thresholds concurrently
+   */
+  protected boolean m_parallel = false;
+  
+  /**
+   * The pool used to evaluate candidate thresholds when the
+   * sweep is done in parallel. It is shared by all guessers.
+   */
+  protected static final ForkJoinPool s_pool = new ForkJoinPool();
+  
   public ThresholdGuesser(ZXingReader reader)
   {
     super();
-    m_sources = new LinkedList<BufferedImage>();
+    m_sources = new LinkedList<LuminanceSource>();
     s_decoder = reader;
   }
   
+  /**
+   * Sets whether to evaluate candidate thresholds concurrently. When
+   * enabled, all candidates are tried at the same time on a fork-join
+   * pool; as soon as one of them decodes all the images, the candidates
+   * farther from the starting point are cancelled. The value returned
+   * is the same as with a sequential sweep.
+   * @param b Set to true to enable the parallel sweep
+   */
+  public void setParallel(boolean b)
+  {
+    m_parallel = b;
+  }
+  
   /**
    * Add an image to the sample
    * @param f The image file to add
@@ -84,7 +117,16 @@ public class ThresholdGuesser
    */
   public void addImage(BufferedImage img)
   {
-    m_sources.add(img);
+    addImage(ZXingReader.getLuminanceSource(img));
+  }
+  
+  /**
+   * Add an image to the sample
+   * @param source The grayscale image to add
+   */
+  public void addImage(LuminanceSource source)
+  {
+    m_sources.add(source);
   }
   
   /**
@@ -131,7 +173,7 @@ public class ThresholdGuesser
    * @param step Threshold increment on each iteration
    * @return The threshold value that maximizes the number of decoded images
    */
-  public int guessThreshold(List<BufferedImage> images, int start, int end, int step)
+  public int guessThreshold(List<LuminanceSource> images, int start, int end, int step)
   {
     return guessThreshold(images, start, end, step, start);
   }
@@ -152,8 +194,12 @@ public class ThresholdGuesser
    * @param starting_point The starting point to search from
    * @return The threshold value that maximizes the number of decoded images
    */
-  public int guessThreshold(List<BufferedImage> images, int start, int end, int step, int starting_point)
+  public int guessThreshold(List<LuminanceSource> images, int start, int end, int step, int starting_point)
   {
+    if (m_parallel)
+    {
+      return guessThresholdParallel(images, start, end, step, starting_point);
+    }
     int best_threshold = 0;
     int best_decoded = 0;
     for (int delta = step; starting_point - delta >= start || starting_point + delta <= end; delta += step)
@@ -193,13 +239,217 @@ public class ThresholdGuesser
     return best_threshold;
   }
   
-  protected int countDecoded(List<BufferedImage> images, int threshold)
+  /**
+   * Tries to guess an appropriate binarization threshold to decode QR codes,
+   * by evaluating all candidate thresholds concurrently. Candidates are
+   * the same as in {@link #guessThreshold(List, int, int, int, int)}, and
+   * are ranked by their distance to the starting point. When a candidate
+   * decodes all the images, every candidate of a higher rank is cancelled;
+   * candidates closer to the starting point keep running, since they are
+   * still preferred if they also decode all the images.
+   * 
+   * @param images The list of images to guess the threshold on
+   * @param start Starting threshold. Should be between 1 and 255.
+   * @param end Ending threshold. Should be between 1 and 255.
+   * @param step Threshold increment on each iteration
+   * @param starting_point The starting point to search from
+   * @return The threshold value that maximizes the number of decoded images
+   */
+  protected int guessThresholdParallel(List<LuminanceSource> images, int start, int end, int step, int starting_point)
+  {
+    if (images.isEmpty())
+    {
+      return 0;
+    }
+    // List candidates in the order the sequential sweep tries them
+    List<Integer> candidates = new ArrayList<Integer>();
+    for (int delta = step; starting_point - delta >= start || starting_point + delta <= end; delta += step)
+    {
+      if (starting_point + delta <= end)
+      {
+        candidates.add(starting_point + delta);
+      }
+      if (starting_point - delta >= start)
+      {
+        candidates.add(starting_point - delta);
+      }
+    }
+    Sweep sweep = new Sweep(images, candidates);
+    s_pool.invoke(sweep);
+    // Pick the best candidate; ties go to the lowest rank
+    int best_threshold = 0;
+    int best_decoded = 0;
+    for (CandidateTask task : sweep.m_tasks)
+    {
+      int num_decoded = task.getDecoded();
+      if (num_decoded > best_decoded)
+      {
+        best_decoded = num_decoded;
+        best_threshold = task.m_threshold;
+      }
+      if (num_decoded == images.size())
+      {
+        break;
+      }
+    }
+    return best_threshold;
+  }
+  
+  /**
+   * Root task of a parallel sweep: forks one task per candidate
+   * threshold, and waits for all of them to finish or be cancelled
+   */
+  protected class Sweep extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * The tasks for each candidate, by increasing rank
+     */
+    protected final List<CandidateTask> m_tasks;
+    
+    /**
+     * The lowest rank of a candidate that decoded all the images
+     * so far
+     */
+    protected final AtomicInteger m_bestFullRank;
+    
+    public Sweep(List<LuminanceSource> images, List<Integer> candidates)
+    {
+      super();
+      m_bestFullRank = new AtomicInteger(Integer.MAX_VALUE);
+      m_tasks = new ArrayList<CandidateTask>(candidates.size());
+      for (int rank = 0; rank < candidates.size(); rank++)
+      {
+        m_tasks.add(new CandidateTask(this, images, candidates.get(rank), rank));
+      }
+    }
+    
+    @Override
+    protected void compute()
+    {
+      for (CandidateTask task : m_tasks)
+      {
+        task.fork();
+      }
+      for (CandidateTask task : m_tasks)
+      {
+        try
+        {
+          task.join();
+        }
+        catch (CancellationException e)
+        {
+          // Task was made useless by a better candidate
+        }
+      }
+    }
+    
+    /**
+     * Records that a candidate decoded all the images, and cancels
+     * the candidates of a higher rank
+     * @param rank The rank of the candidate
+     */
+    protected void foundFull(int rank)
+    {
+      int current = m_bestFullRank.get();
+      while (rank < current)
+      {
+        if (m_bestFullRank.compareAndSet(current, rank))
+        {
+          break;
+        }
+        current = m_bestFullRank.get();
+      }
+      for (int i = rank + 1; i < m_tasks.size(); i++)
+      {
+        m_tasks.get(i).cancel(false);
+      }
+    }
+    
+    /**
+     * Checks whether a candidate can no longer be selected
+     * @param rank The rank of the candidate
+     * @return true if a candidate of a lower rank decoded all images
+     */
+    protected boolean isObsolete(int rank)
+    {
+      return rank > m_bestFullRank.get();
+    }
+  }
+  
+  /**
+   * Counts the images decoded with a single candidate threshold. All
+   * tasks go through the same {@link ZXingReader}, which is safe since
+   * it keeps one set of ZXing readers per thread: each worker of the
+   * pool decodes with its own, and reuses it for all the candidates it
+   * runs.
+   */
+  protected class CandidateTask extends RecursiveTask<Integer>
+  {
+    private static final long serialVersionUID = 1L;
+    
+    protected final Sweep m_sweep;
+    
+    protected final List<LuminanceSource> m_images;
+    
+    protected final int m_threshold;
+    
+    protected final int m_rank;
+    
+    public CandidateTask(Sweep sweep, List<LuminanceSource> images, int threshold, int rank)
+    {
+      super();
+      m_sweep = sweep;
+      m_images = images;
+      m_threshold = threshold;
+      m_rank = rank;
+    }
+    
+    @Override
+    protected Integer compute()
+    {
+      int num_decoded = 0;
+      for (LuminanceSource source : m_images)
+      {
+        if (m_sweep.isObsolete(m_rank))
+        {
+          return -1;
+        }
+        if (s_decoder.readCode(source, m_threshold) != null)
+        {
+          num_decoded++;
+        }
+      }
+      if (num_decoded == m_images.size())
+      {
+        m_sweep.foundFull(m_rank);
+      }
+      return num_decoded;
+    }
+    
+    /**
+     * Gets the number of images decoded by this candidate
+     * @return The number of images, or -1 if the candidate was
+     *   cancelled
+     */
+    public int getDecoded()
+    {
+      if (isCancelled() || !isDone() || isCompletedAbnormally())
+      {
+        return -1;
+      }
+      return getRawResult();
+    }
+  }
+  
+  protected int countDecoded(List<LuminanceSource> images, int threshold)
   {
     int num_decoded = 0;
     Result value = null;
-    for (BufferedImage bi : images)
+    for (LuminanceSource source : images)
     {
-      value = s_decoder.readCode(bi, threshold);
+      value = s_decoder.readCode(source, threshold);
       if (value != null)
       {
         num_decoded++;
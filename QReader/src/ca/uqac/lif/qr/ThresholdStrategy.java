@@ -0,0 +1,40 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.qr;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * Predicts the binarization threshold to use on an image, before
+ * any attempt is made to decode it. The {@link ZXingReader} first
+ * tries the predicted value, and only sweeps other thresholds (if
+ * guessing is enabled) in a narrow interval around it.
+ * @author sylvain
+ *
+ */
+public interface ThresholdStrategy
+{
+  /**
+   * Predicts the binarization threshold for an image
+   * @param source The grayscale image
+   * @return A threshold value between 1 and 255, using the same
+   *   convention as {@link ThresholdBinarizer}, or -1 if no threshold
+   *   could be predicted
+   */
+  public int getThreshold(LuminanceSource source);
+}
@@ -0,0 +1,263 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.qr;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * Follows the binarization threshold across the frames of a continuous
+ * stream (camera or video). In such a stream, lighting changes slowly,
+ * so that the range of thresholds that decode a frame is almost the same
+ * from one frame to the next.
+ * <p>
+ * The tracker keeps a smoothed estimate of the lower and upper bounds
+ * of this range (the "window"), and predicts the middle of it for the
+ * next frame. To follow a drift before decoding actually fails, the
+ * reader regularly probes one of the bounds on frames that were decoded
+ * successfully (see {@link #getProbe()}): a bound that still decodes is
+ * pushed outwards, a bound that fails is pulled inwards. Normal use is
+ * as follows:
+ * <ol>
+ * <li>The threshold to try on a frame is obtained from
+ *   {@link #getThreshold(LuminanceSource)}</li>
+ * <li>If the frame is decoded, this is reported with
+ *   {@link #reportSuccess(int)}; the reader then asks for a value to
+ *   probe with {@link #getProbe()}, and reports the outcome with
+ *   {@link #reportProbe(int, boolean)}</li>
+ * <li>If the frame could not be decoded, this is reported with
+ *   {@link #reportFailure()}</li>
+ * </ol>
+ * The tracker is thread-safe, so that it can be shared by readers
+ * decoding frames of the same stream in parallel.
+ * @author sylvain
+ *
+ */
+public class ThresholdTracker implements ThresholdStrategy
+{
+  /**
+   * The strategy used to predict the threshold as long as the
+   * tracker has no estimate of its own (may be null)
+   */
+  protected ThresholdStrategy m_fallback;
+  
+  /**
+   * Estimated lower bound of the window of good thresholds
+   */
+  protected double m_low = 0;
+  
+  /**
+   * Estimated upper bound of the window of good thresholds
+   */
+  protected double m_high = 0;
+  
+  /**
+   * Whether the tracker currently has an estimate of the window
+   */
+  protected boolean m_initialized = false;
+  
+  /**
+   * Weight given to a new observation when updating a bound
+   * (between 0 and 1)
+   */
+  protected double m_smoothing = 0.5;
+  
+  /**
+   * The distance by which a bound is pushed or pulled after a probe
+   */
+  protected int m_step = 5;
+  
+  /**
+   * The default number of decoded frames between two probes. A probe
+   * costs a second decoding of the frame, so probing every frame would
+   * double the cost of the frames that decode at the first attempt;
+   * lighting drifts slowly enough for a sparse probe to follow it.
+   */
+  public static final int DEFAULT_PROBE_PERIOD = 12;
+  
+  /**
+   * Probe a bound once every this number of decoded frames
+   */
+  protected int m_probePeriod = DEFAULT_PROBE_PERIOD;
+  
+  /**
+   * Number of frames decoded since the last probe
+   */
+  protected int m_sinceProbe = 0;
+  
+  /**
+   * Whether the next probe is on the lower bound
+   */
+  protected boolean m_probeLow = true;
+  
+  /**
+   * Number of consecutive frames that could not be decoded
+   */
+  protected int m_failures = 0;
+  
+  /**
+   * Number of consecutive failures after which the estimate is
+   * dropped
+   */
+  protected int m_maxFailures = 5;
+  
+  /**
+   * Creates a tracker with no fallback strategy
+   */
+  public ThresholdTracker()
+  {
+    this(null);
+  }
+  
+  /**
+   * Creates a tracker
+   * @param fallback The strategy used to predict the threshold as long
+   *   as the tracker has no estimate of its own. Can be null.
+   */
+  public ThresholdTracker(ThresholdStrategy fallback)
+  {
+    super();
+    m_fallback = fallback;
+  }
+  
+  /**
+   * Sets how often a bound of the window is probed
+   * @param period Probe once every this number of decoded frames
+   *   (default: {@link #DEFAULT_PROBE_PERIOD}); lower values follow
+   *   drifts faster at the cost of more decoding. 0 disables probing.
+   */
+  public synchronized void setProbePeriod(int period)
+  {
+    m_probePeriod = period;
+  }
+  
+  /**
+   * Sets the weight given to a new observation when updating a bound
+   * @param smoothing A value between 0 (bounds never move) and 1 (bounds
+   *   only depend on the last observation)
+   */
+  public synchronized void setSmoothing(double smoothing)
+  {
+    m_smoothing = smoothing;
+  }
+  
+  @Override
+  public synchronized int getThreshold(LuminanceSource source)
+  {
+    if (!m_initialized)
+    {
+      if (m_fallback != null)
+      {
+        return m_fallback.getThreshold(source);
+      }
+      return -1;
+    }
+    return clamp((int) Math.round((m_low + m_high) / 2));
+  }
+  
+  /**
+   * Records that a frame was decoded with some threshold. The window is
+   * widened, if necessary, so that it contains this value.
+   * @param threshold The threshold
+   */
+  public synchronized void reportSuccess(int threshold)
+  {
+    m_failures = 0;
+    m_sinceProbe++;
+    if (!m_initialized)
+    {
+      m_low = threshold - m_step;
+      m_high = threshold + m_step;
+      m_initialized = true;
+      return;
+    }
+    m_low = Math.min(m_low, threshold);
+    m_high = Math.max(m_high, threshold);
+  }
+  
+  /**
+   * Records that a frame could not be decoded. After too many consecutive
+   * failures, the tracker drops its estimate and defers to its fallback
+   * strategy until a frame is decoded again.
+   */
+  public synchronized void reportFailure()
+  {
+    m_failures++;
+    if (m_failures >= m_maxFailures)
+    {
+      m_initialized = false;
+    }
+  }
+  
+  /**
+   * Gets a threshold to probe on a frame that was just decoded
+   * @return The current estimate of one of the bounds of the window,
+   *   or -1 if no probe is due
+   */
+  public synchronized int getProbe()
+  {
+    if (!m_initialized || m_probePeriod <= 0 || m_sinceProbe < m_probePeriod)
+    {
+      return -1;
+    }
+    m_sinceProbe = 0;
+    m_probeLow = !m_probeLow;
+    if (!m_probeLow)
+    {
+      // We just flipped the flag: this probe is on the lower bound
+      return clamp((int) Math.round(m_low));
+    }
+    return clamp((int) Math.round(m_high));
+  }
+  
+  /**
+   * Records the outcome of a probe. A bound that still decodes is
+   * pushed away from the middle of the window; a bound that fails is
+   * pulled towards it.
+   * @param threshold The threshold that was probed
+   * @param success Whether the frame was decoded with this threshold
+   */
+  public synchronized void reportProbe(int threshold, boolean success)
+  {
+    if (!m_initialized)
+    {
+      return;
+    }
+    double middle = (m_low + m_high) / 2;
+    if (threshold <= middle)
+    {
+      double target = success ? threshold - m_step : threshold + m_step;
+      m_low += m_smoothing * (target - m_low);
+    }
+    else
+    {
+      double target = success ? threshold + m_step : threshold - m_step;
+      m_high += m_smoothing * (target - m_high);
+    }
+    if (m_low > m_high)
+    {
+      // Window collapsed: keep its middle
+      m_low = middle;
+      m_high = middle;
+    }
+  }
+  
+  protected static int clamp(int threshold)
+  {
+    return Math.min(255, Math.max(1, threshold));
+  }
+}
@@ -18,18 +18,30 @@
 package ca.uqac.lif.qr;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Binarizer;
 import com.google.zxing.BinaryBitmap;
 import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
 import com.google.zxing.MultiFormatReader;
 import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
 import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
 import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
 import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.multi.GenericMultipleBarcodeReader;
+import com.google.zxing.multi.MultipleBarcodeReader;
+import com.google.zxing.multi.qrcode.QRCodeMultiReader;
 
 public class ZXingReader
 {
@@ -49,14 +61,28 @@ public class ZXingReader
    * The binarization threshold used to convert the images to
    * black and white
    */
-  protected int m_binarizationThreshold = 128;
+  protected volatile int m_binarizationThreshold = 128;
   
   /**
-   * A multi-format reader of the ZXing library, whose static method "read"
-   * is called to decode QR codes. It is instantiated only once here to
-   * improve performance. 
+   * The "hints" passed to the ZXing readers. The map is built once each
+   * time the configuration changes, and is never modified afterwards.
    */
-  protected static final MultiFormatReader s_reader = new MultiFormatReader();
+  protected volatile Map<DecodeHintType, Object> m_hints;
+  
+  /**
+   * The multi-format readers of the ZXing library used to decode
+   * codes. Since these readers are not thread-safe, each thread using
+   * this object gets its own, which is kept for all the frames it
+   * decodes.
+   */
+  protected final ThreadLocal<ThreadReader> m_readers = new ThreadLocal<ThreadReader>()
+  {
+    @Override
+    protected ThreadReader initialValue()
+    {
+      return new ThreadReader();
+    }
+  };
   
   /**
    * The character set used to encode character inside a QR code.
@@ -69,6 +95,11 @@ public class ZXingReader
    */
   protected boolean m_guessThreshold = false;
   
+  /**
+   * Whether to try candidate thresholds concurrently when guessing
+   */
+  protected boolean m_parallelGuess = false;
+  
   /**
    * Whether to use the threshold binarizer
    */
@@ -89,6 +120,109 @@ public class ZXingReader
    */
   protected static final int THRESHOLD_INCREMENT = 10;
   
+  /**
+   * Half-width of the interval swept around a predicted threshold
+   */
+  protected static final int PREDICTION_WIDTH = 20;
+  
+  /**
+   * Increment steps when sweeping around a predicted threshold
+   */
+  protected static final int PREDICTION_INCREMENT = 5;
+  
+  /**
+   * The strategy used to predict the threshold of each image, if any
+   */
+  protected ThresholdStrategy m_thresholdStrategy = null;
+  
+  /**
+   * The tracker following the threshold across frames, if any. Copies
+   * of this reader share the same tracker.
+   */
+  protected ThresholdTracker m_thresholdTracker = null;
+  
+  /**
+   * Whether to look for the code where it was last found
+   */
+  protected boolean m_trackRegion = false;
+  
+  /**
+   * The region where the next code is looked for first, as an array
+   * {left, top, right, bottom}; null to search the whole frame
+   */
+  protected volatile int[] m_region = null;
+  
+  /**
+   * Fraction of the size of the last code's bounding box added on
+   * each side of it when cropping the next frame
+   */
+  protected static final float REGION_PADDING = 0.75f;
+  
+  /**
+   * The granularity, in pixels, of the bounds of the region searched
+   * for a code
+   */
+  protected static final int REGION_GRID = 32;
+  
+  /**
+   * Whether to reuse the buffers of each thread from one frame to the
+   * next
+   */
+  protected boolean m_reuseBuffers = false;
+  
+  /**
+   * Whether to look for codes in downsampled copies of the frame before
+   * decoding it at full resolution
+   */
+  protected boolean m_usePyramid = false;
+  
+  /**
+   * The downsampling factors tried, from the coarsest to the finest
+   */
+  protected static final int[] PYRAMID_FACTORS = {4, 2, 1};
+  
+  /**
+   * The smallest width or height of a downsampled frame; coarser levels
+   * of the pyramid are skipped for smaller frames
+   */
+  protected static final int PYRAMID_MIN_SIZE = 240;
+  
+  /**
+   * The index in {@link #PYRAMID_FACTORS} of the level at which the
+   * last code was found, and where the next frame is decoded first
+   */
+  protected volatile int m_pyramidLevel = 0;
+  
+  public ZXingReader()
+  {
+    super();
+    m_hints = setupHints();
+  }
+  
+  /**
+   * Creates a new reader with the same settings as another one. The
+   * new reader only shares the threshold tracker of the original, if
+   * any; the binarization threshold and the region of the last code
+   * evolve independently in each reader.
+   * @param reader The reader to copy the settings from
+   */
+  public ZXingReader(ZXingReader reader)
+  {
+    this();
+    m_format = reader.m_format;
+    m_pureCode = reader.m_pureCode;
+    m_hints = reader.m_hints;
+    m_binarizationThreshold = reader.m_binarizationThreshold;
+    m_guessThreshold = reader.m_guessThreshold;
+    m_useThresholdBinarizer = reader.m_useThresholdBinarizer;
+    m_parallelGuess = reader.m_parallelGuess;
+    m_thresholdStrategy = reader.m_thresholdStrategy;
+    m_thresholdTracker = reader.m_thresholdTracker;
+    m_trackRegion = reader.m_trackRegion;
+    m_reuseBuffers = reader.m_reuseBuffers;
+    m_usePyramid = reader.m_usePyramid;
+  }
+  
   /**
    * Sets whether to use the threshold binarizer or the generic
    * histogram binarizer.
@@ -109,6 +243,42 @@ public class ZXingReader
     m_guessThreshold = b;
   }
   
+  /**
+   * Sets whether to try candidate thresholds concurrently when
+   * guessing the binarization threshold.
+   * @param b Set to true to guess in parallel
+   */
+  public void setParallelGuess(boolean b)
+  {
+    m_parallelGuess = b;
+  }
+  
+  /**
+   * Sets the strategy used to predict the binarization threshold of
+   * each image. The predicted value is tried first; if guessing is
+   * enabled and decoding fails, other values are only tried in a narrow
+   * interval around it.
+   * @param strategy The strategy, or null to start from the current
+   *   threshold as usual
+   */
+  public void setThresholdStrategy(ThresholdStrategy strategy)
+  {
+    m_thresholdStrategy = strategy;
+  }
+  
+  /**
+   * Sets the tracker used to follow the binarization threshold from one
+   * frame to the next. When set, the tracker's prediction replaces that
+   * of the threshold strategy; the tracker is told the outcome of every
+   * frame, and some decoded frames are decoded a second time to probe
+   * the bounds of its window.
+   * @param tracker The tracker, or null to disable tracking
+   */
+  public void setThresholdTracker(ThresholdTracker tracker)
+  {
+    m_thresholdTracker = tracker;
+  }
+  
   /**
    * Set the threshold to use in the threshold binarizer.
    * @param threshold A threshold value between 0 and 255.
@@ -118,46 +288,404 @@ public class ZXingReader
     m_binarizationThreshold = threshold;
   }
   
+  /**
+   * Sets whether to look for the code in the region where it was last
+   * found. When enabled, each frame is first decoded in a padded
+   * bounding box around the points of the last code read; the whole
+   * frame is only searched if this fails.
+   * @param b Set to true to track the region of the code
+   */
+  public void setTrackRegion(boolean b)
+  {
+    m_trackRegion = b;
+    if (!b)
+    {
+      m_region = null;
+    }
+  }
+  
+  /**
+   * Sets whether to reuse the same buffers for every frame. When
+   * enabled, each thread keeps a {@link DecodeContext} in which images
+   * are converted to grayscale and binarized, so that decoding a stream
+   * of frames of the same size produces almost no garbage. This only
+   * applies to the threshold binarizer.
+   * @param b Set to true to reuse buffers
+   */
+  public void setReuseBuffers(boolean b)
+  {
+    m_reuseBuffers = b;
+  }
+  
+  /**
+   * Sets whether to decode frames at a lower resolution first. When
+   * enabled, a frame is first reduced 4 or 2 times in each dimension,
+   * which is much cheaper to search for a code and is often enough when
+   * the code covers a good part of a high-resolution frame. The frame is
+   * only decoded at full resolution if this fails. The level at which a
+   * code is found is the first one tried on the next frame. Thresholds
+   * are only guessed at full resolution.
+   * @param b Set to true to decode downsampled frames first
+   */
+  public void setPyramid(boolean b)
+  {
+    m_usePyramid = b;
+    m_pyramidLevel = 0;
+  }
+  
   /**
    * Reads a QR code, using the default image binarizer
-   * @param in The input stream for the contents of the image to read
+   * @param img The image to read
    * @return The (character) contents of the decoded QR code; null if no
    *   code could be read for some reason
    */
   public String readCode(BufferedImage img)
   {
-    Result result = null;
-    if (m_useThresholdBinarizer)
+    // Convert the image to grayscale once; the same luminance values
+    // are reused for every attempt on this image
+    if (m_reuseBuffers)
+    {
+      return readCode(m_readers.get().m_context.getLuminanceSource(img));
+    }
+    return readCode(getLuminanceSource(img));
+  }
+  
+  /**
+   * Reads all the codes present in a square grid of codes, such as one
+   * produced by {@link ZXingWriter#getCodeGrid(List, int)}
+   * @param img The image to read
+   * @param expected The number of codes expected in the image
+   * @return The contents of the codes, as returned by
+   *   {@link #readCodes(BufferedImage, int, int)}
+   */
+  public List<String> readCodes(BufferedImage img, int expected)
+  {
+    return readCodes(img, expected, (int) Math.ceil(Math.sqrt(expected)));
+  }
+  
+  /**
+   * Reads all the codes present in a grid of codes, such as one
+   * produced by {@link ZXingWriter#getCodeGrid(List, int)}. Each code is
+   * put at the position of the cell it was read from, row by row and
+   * from left to right, which is the order in which codes are laid out
+   * in the grid. Cells are located assuming the grid is in the middle
+   * of the image, which is only exact when the grid fills the image; in
+   * camera captures, codes may be given the wrong cells when whole
+   * columns or rows are missing. The threshold is not guessed when
+   * reading multiple codes; the current or predicted threshold is used.
+   * @param img The image to read
+   * @param expected The number of codes expected in the image
+   * @param columns The number of codes in each row of the grid
+   * @return The contents of each cell of the grid, in reading order. The
+   *   list has exactly the expected number of elements, with null for
+   *   the cells where no code could be read, so that each missing code
+   *   is counted as a lost frame and the others keep their place.
+   */
+  public List<String> readCodes(BufferedImage img, int expected, int columns)
+  {
+    LuminanceSource source = null;
+    if (m_reuseBuffers)
     {
-      result = readCode(img, m_binarizationThreshold);
-      if (result == null && m_guessThreshold)
+      source = m_readers.get().m_context.getLuminanceSource(img);
+    }
+    else
+    {
+      source = getLuminanceSource(img);
+    }
+    Binarizer bin = null;
+    if (!m_useThresholdBinarizer)
+    {
+      bin = new GlobalHistogramBinarizer(source);
+    }
+    else
+    {
+      int threshold = m_binarizationThreshold;
+      ThresholdStrategy strategy = m_thresholdStrategy;
+      if (m_thresholdTracker != null)
+      {
+        strategy = m_thresholdTracker;
+      }
+      if (strategy != null)
       {
-        // No success in decoding: try with other threshold values
-        ThresholdGuesser guess = new ThresholdGuesser(this);
-        guess.addImage(img);
-        int suggested_threshold = guess.guessThreshold(THRESHOLD_MIN, THRESHOLD_MAX, THRESHOLD_INCREMENT, m_binarizationThreshold);
-        if (suggested_threshold > 0)
+        int predicted = strategy.getThreshold(source);
+        if (predicted > 0)
         {
-          // The guesser suggests a new value: try to decode again
-          m_binarizationThreshold = suggested_threshold;
-          result = readCode(img, m_binarizationThreshold);
+          threshold = predicted;
         }
       }
+      if (m_reuseBuffers)
+      {
+        bin = new ThresholdBinarizer(source, threshold, m_readers.get().m_context);
+      }
+      else
+      {
+        bin = new ThresholdBinarizer(source, threshold);
+      }
+    }
+    Result[] results = null;
+    try
+    {
+      results = getThreadMultiReader().decodeMultiple(new BinaryBitmap(bin), m_hints);
+    }
+    catch (NotFoundException e)
+    {
+      results = new Result[0];
+    }
+    columns = Math.max(1, columns);
+    int rows = Math.max(1, (expected + columns - 1) / columns);
+    String[] cells = placeResults(results, columns, rows, img.getWidth(), img.getHeight());
+    List<String> codes = new ArrayList<String>(expected);
+    for (int i = 0; i < expected; i++)
+    {
+      codes.add(cells[i]);
+    }
+    return codes;
+  }
+  
+  /**
+   * Puts decoded codes in the cells of the grid they were read from.
+   * Columns and rows are found in the same way: the centers of the codes
+   * are first put into groups, two codes being in the same column (or
+   * row) if their centers are closer than half the size of a code. See
+   * {@link #getGridIndices(float[], float, int, int, float[])} for how
+   * groups are matched to columns. Since cells are square, the width of
+   * a column measured on one axis is used on the other when it cannot
+   * be measured there.
+   * @param results The codes found
+   * @param columns The number of columns of the grid
+   * @param rows The number of rows of the grid
+   * @param width The width of the image the codes were read from
+   * @param height The height of the image
+   * @return The contents of each cell of the grid, row by row; null for
+   *   the cells where no code was found, or whose code was dropped
+   *   because another one was placed in the same cell
+   */
+  protected static String[] placeResults(Result[] results, int columns, int rows, int width, int height)
+  {
+    String[] cells = new String[columns * rows];
+    int n = results.length;
+    if (n == 0)
+    {
+      return cells;
+    }
+    float[] xs = new float[n];
+    float[] ys = new float[n];
+    float[] sizes = new float[n];
+    for (int i = 0; i < n; i++)
+    {
+      float[] center = getCenter(results[i]);
+      xs[i] = center[0];
+      ys[i] = center[1];
+      sizes[i] = center[2];
+    }
+    Arrays.sort(sizes);
+    float size = sizes[n / 2];
+    float[] col_pitch = new float[1];
+    float[] row_pitch = new float[1];
+    int[] cols = getGridIndices(xs, size, columns, width, col_pitch);
+    row_pitch[0] = col_pitch[0];
+    int[] rws = getGridIndices(ys, size, rows, height, row_pitch);
+    if (col_pitch[0] == 0 && row_pitch[0] > 0)
+    {
+      col_pitch[0] = row_pitch[0];
+      cols = getGridIndices(xs, size, columns, width, col_pitch);
+    }
+    for (int i = 0; i < n; i++)
+    {
+      int cell = rws[i] * columns + cols[i];
+      // Two codes should not end up in the same cell. If the grid was
+      // misjudged, the later code is dropped, as if it could not be
+      // read: putting it in another cell would pass it to the decoder
+      // out of order.
+      if (cells[cell] == null)
+      {
+        cells[cell] = results[i].getText();
+      }
+    }
+    return cells;
+  }
+  
+  /**
+   * Finds the column (or row) of the grid each code was read from,
+   * given the positions of the codes along one axis. Positions are put
+   * into groups; when there are as many groups as columns, the groups
+   * are the columns in order. Otherwise some columns have no code, and
+   * the width of a column is estimated from the gaps between groups,
+   * which must all be multiples of it. A column is wider than a code,
+   * and the grid cannot be wider than the image; among the widths that
+   * remain, the one closest to the width measured on the other axis is
+   * taken if there is one, and the largest otherwise. The groups are
+   * then shifted to the columns that put the grid closest to the middle
+   * of the image. When the width of a column is not known at all, the
+   * grid is assumed to cover the image.
+   * <p>
+   * Both assumptions only hold exactly for images that contain nothing
+   * but the grid, such as frames read from a file written by
+   * {@link ZXingWriter#getCodeGrid(List, int)}. In camera captures the
+   * grid is usually smaller than the image and may be off center; when
+   * whole columns or rows of codes are missing, the codes that were
+   * read may then be given the wrong cells.
+   * @param positions The positions of the codes
+   * @param size The size of a code
+   * @param count The number of columns of the grid
+   * @param extent The width of the image
+   * @param pitch On input, the width of a column measured on the other
+   *   axis, or 0 if unknown. On output, the width of a column measured
+   *   on this axis, or 0 if it could not be measured.
+   * @return The column of each code
+   */
+  protected static int[] getGridIndices(final float[] positions, float size, int count, int extent, float[] pitch)
+  {
+    float hint = pitch[0];
+    pitch[0] = 0;
+    int n = positions.length;
+    int[] indices = new int[n];
+    if (count <= 1)
+    {
+      return indices;
+    }
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++)
+    {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>()
+    {
+      @Override
+      public int compare(Integer i1, Integer i2)
+      {
+        return Float.compare(positions[i1], positions[i2]);
+      }
+    });
+    // Group positions, each group starting at its smallest position
+    int[] group = new int[n];
+    float[] starts = new float[n];
+    int groups = 0;
+    for (int k = 0; k < n; k++)
+    {
+      float pos = positions[order[k]];
+      if (groups == 0 || pos - starts[groups - 1] >= size / 2)
+      {
+        starts[groups] = pos;
+        groups++;
+      }
+      group[order[k]] = groups - 1;
+    }
+    int[] columns = new int[groups];
+    if (groups >= count)
+    {
+      for (int g = 0; g < groups; g++)
+      {
+        columns[g] = Math.min(g, count - 1);
+      }
+      pitch[0] = (starts[groups - 1] - starts[0]) / (groups - 1);
     }
     else
     {
-      GlobalHistogramBinarizer bin = new GlobalHistogramBinarizer(new BufferedImageLuminanceSource(img));
-      BinaryBitmap binaryBitmap = new BinaryBitmap(bin);
-      Map<DecodeHintType, Object> hints = setupHints();
-      try
+      float width = 0;
+      if (groups > 1)
       {
-        result = s_reader.decode(binaryBitmap, hints);
-      } 
-      catch (NotFoundException e)
+        float min_gap = Float.MAX_VALUE;
+        for (int g = 1; g < groups; g++)
+        {
+          min_gap = Math.min(min_gap, starts[g] - starts[g - 1]);
+        }
+        // The smallest gap spans one or more columns
+        for (int k = 1; k < count; k++)
+        {
+          float p = min_gap / k;
+          if (p < size || p * count > extent * 1.1f)
+          {
+            continue;
+          }
+          boolean fits = true;
+          for (int g = 1; g < groups && fits; g++)
+          {
+            float steps = (starts[g] - starts[0]) / p;
+            fits = Math.abs(steps - Math.round(steps)) <= 0.25f && Math.round(steps) <= count - 1;
+          }
+          if (fits && (width == 0 || (hint > 0 && Math.abs(p - hint) < Math.abs(width - hint))))
+          {
+            width = p;
+          }
+        }
+        pitch[0] = width;
+      }
+      else
+      {
+        width = hint;
+      }
+      if (width > 0)
+      {
+        int span = Math.round((starts[groups - 1] - starts[0]) / width);
+        // The middle of the grid if the first group is in the first column
+        float middle = starts[0] + width * (count - 1) / 2f;
+        int first = Math.round((middle - extent / 2f) / width);
+        first = Math.max(0, Math.min(count - 1 - span, first));
+        for (int g = 0; g < groups; g++)
+        {
+          columns[g] = first + Math.round((starts[g] - starts[0]) / width);
+        }
+      }
+      else
+      {
+        // Nothing to measure the grid with
+        for (int g = 0; g < groups; g++)
+        {
+          columns[g] = Math.max(0, Math.min(count - 1, (int) Math.floor(starts[g] * count / extent)));
+        }
+      }
+    }
+    for (int i = 0; i < n; i++)
+    {
+      indices[i] = columns[group[i]];
+    }
+    return indices;
+  }
+  
+  /**
+   * Computes the center and the size of a decoded code from its points
+   * @param result The code
+   * @return An array containing the x and y coordinates of the center,
+   *   and the largest of the width and height of the box around the
+   *   points
+   */
+  protected static float[] getCenter(Result result)
+  {
+    ResultPoint[] points = result.getResultPoints();
+    float min_x = Float.MAX_VALUE, min_y = Float.MAX_VALUE;
+    float max_x = -Float.MAX_VALUE, max_y = -Float.MAX_VALUE;
+    if (points != null)
+    {
+      for (ResultPoint p : points)
       {
-        result = null;
+        if (p == null)
+        {
+          continue;
+        }
+        min_x = Math.min(min_x, p.getX());
+        max_x = Math.max(max_x, p.getX());
+        min_y = Math.min(min_y, p.getY());
+        max_y = Math.max(max_y, p.getY());
       }
     }
+    if (min_x > max_x)
+    {
+      // No points: nothing better than putting the code first
+      return new float[]{0, 0, 0};
+    }
+    return new float[]{(min_x + max_x) / 2, (min_y + max_y) / 2, Math.max(max_x - min_x, max_y - min_y)};
+  }
+  
+  /**
+   * Reads a QR code from a grayscale image
+   * @param source The image to read
+   * @return The (character) contents of the decoded QR code; null if no
+   *   code could be read for some reason
+   */
+  public String readCode(LuminanceSource source)
+  {
+    Result result = readResult(source);
     if (result != null)
     {
       return result.getText();
@@ -165,27 +693,402 @@ public class ZXingReader
     return null;
   }
   
-  /*package*/ Result readCode(BufferedImage img, int threshold)
+  /**
+   * Reads a code from a grayscale image, looking first in the region
+   * where the last code was found, if region tracking is enabled
+   * @param source The image to read
+   * @return The decoded result, or null if no code could be read
+   */
+  protected Result readResult(LuminanceSource source)
   {
     Result result = null;
-    ThresholdBinarizer bin = new ThresholdBinarizer(new BufferedImageLuminanceSource(img), m_binarizationThreshold);
+    int width = source.getWidth();
+    int height = source.getHeight();
+    int[] region = m_region;
+    if (region != null && region[2] <= width && region[3] <= height && source.isCropSupported())
+    {
+      // Quick attempt in the region of the last code; thresholds are
+      // not guessed here, since the full frame is tried next anyway
+      LuminanceSource cropped = source.crop(region[0], region[1], region[2] - region[0], region[3] - region[1]);
+      result = decode(cropped, false);
+      if (result != null)
+      {
+        updateRegion(result, region[0], region[1], width, height);
+        return result;
+      }
+    }
+    if (m_usePyramid && !m_pureCode)
+    {
+      result = decodePyramid(source);
+    }
+    else
+    {
+      result = decode(source, true);
+    }
+    if (result != null && m_trackRegion)
+    {
+      updateRegion(result, 0, 0, width, height);
+    }
+    return result;
+  }
+  
+  /**
+   * Decodes a frame at decreasing levels of downsampling, starting from
+   * the level where the last code was found
+   * @param source The frame
+   * @return The decoded result, with its points in the coordinates of
+   *   the full frame, or null if no code could be read
+   */
+  protected Result decodePyramid(LuminanceSource source)
+  {
+    int width = source.getWidth();
+    int height = source.getHeight();
+    for (int level = m_pyramidLevel; level < PYRAMID_FACTORS.length; level++)
+    {
+      int factor = PYRAMID_FACTORS[level];
+      Result result = null;
+      if (factor == 1)
+      {
+        result = decode(source, true);
+      }
+      else if (Math.min(width, height) / factor >= PYRAMID_MIN_SIZE)
+      {
+        result = decode(downsample(source, factor), false);
+        if (result != null)
+        {
+          result = scaleResult(result, factor);
+        }
+      }
+      if (result != null)
+      {
+        m_pyramidLevel = level;
+        return result;
+      }
+    }
+    // The code was lost: the next frame starts again from the coarsest
+    // level, which is the cheapest to try
+    m_pyramidLevel = 0;
+    return null;
+  }
+  
+  /**
+   * Reduces the resolution of a grayscale image. Each pixel of the
+   * reduced image is the average of the 2&times;2 pixels at the center
+   * of the corresponding block of the original; this is the exact
+   * average for a factor of 2, and for larger factors it is much faster
+   * than averaging whole blocks, while still smoothing out noise.
+   * @param source The image
+   * @param factor The side of the blocks, in pixels; must be even
+   * @return The reduced image
+   */
+  protected LuminanceSource downsample(LuminanceSource source, int factor)
+  {
+    int source_width = source.getWidth();
+    int width = source_width / factor;
+    int height = source.getHeight() / factor;
+    byte[] scaled = null;
+    if (m_reuseBuffers)
+    {
+      scaled = m_readers.get().m_context.getScaledBuffer(width * height);
+    }
+    else
+    {
+      scaled = new byte[width * height];
+    }
+    // The sources of full frames hand out their array without copying
+    byte[] pixels = source.getMatrix();
+    int center = factor / 2 - 1;
+    for (int y = 0; y < height; y++)
+    {
+      int row_0 = (y * factor + center) * source_width + center;
+      int row_1 = row_0 + source_width;
+      int out = y * width;
+      for (int x = 0; x < width; x++)
+      {
+        int i = x * factor;
+        int sum = (pixels[row_0 + i] & 0xff) + (pixels[row_0 + i + 1] & 0xff)
+            + (pixels[row_1 + i] & 0xff) + (pixels[row_1 + i + 1] & 0xff);
+        scaled[out + x] = (byte) ((sum + 2) >> 2);
+      }
+    }
+    return new PlanarYUVLuminanceSource(scaled, width, height, 0, 0, width, height, false);
+  }
+  
+  /**
+   * Converts the points of a code read in a downsampled image to the
+   * coordinates of the full image
+   * @param result The code
+   * @param factor The downsampling factor of the image
+   * @return A copy of the result with scaled points
+   */
+  protected static Result scaleResult(Result result, int factor)
+  {
+    ResultPoint[] points = result.getResultPoints();
+    ResultPoint[] scaled = null;
+    if (points != null)
+    {
+      scaled = new ResultPoint[points.length];
+      for (int i = 0; i < points.length; i++)
+      {
+        if (points[i] != null)
+        {
+          // Pixel centers are shifted by the averaging
+          scaled[i] = new ResultPoint((points[i].getX() + 0.5f) * factor - 0.5f, (points[i].getY() + 0.5f) * factor - 0.5f);
+        }
+      }
+    }
+    Result out = new Result(result.getText(), result.getRawBytes(), scaled, result.getBarcodeFormat(), result.getTimestamp());
+    out.putAllMetadata(result.getResultMetadata());
+    return out;
+  }
+  
+  /**
+   * Computes the region to search in the next frame, from the points
+   * of the code just read
+   * @param result The code just read
+   * @param left The horizontal offset of the image the code was read from
+   * @param top The vertical offset of the image the code was read from
+   * @param width The width of the full frame
+   * @param height The height of the full frame
+   */
+  protected void updateRegion(Result result, int left, int top, int width, int height)
+  {
+    ResultPoint[] points = result.getResultPoints();
+    if (m_pureCode || points == null || points.length < 2)
+    {
+      m_region = null;
+      return;
+    }
+    float min_x = Float.MAX_VALUE, min_y = Float.MAX_VALUE;
+    float max_x = -Float.MAX_VALUE, max_y = -Float.MAX_VALUE;
+    for (ResultPoint p : points)
+    {
+      if (p == null)
+      {
+        continue;
+      }
+      min_x = Math.min(min_x, p.getX());
+      max_x = Math.max(max_x, p.getX());
+      min_y = Math.min(min_y, p.getY());
+      max_y = Math.max(max_y, p.getY());
+    }
+    // Result points are the centers of the finder patterns, well inside
+    // the code; pad the box to include the rest of the code, the quiet
+    // zone and some room for motion
+    float pad = Math.max(max_x - min_x, max_y - min_y) * REGION_PADDING;
+    int[] region = new int[4];
+    region[0] = Math.max(0, left + (int) (min_x - pad));
+    region[1] = Math.max(0, top + (int) (min_y - pad));
+    region[2] = Math.min(width, left + (int) (max_x + pad) + 1);
+    region[3] = Math.min(height, top + (int) (max_y + pad) + 1);
+    // Snap the box to a coarse grid, so that it keeps the same size
+    // when the code jitters by a few pixels; this lets the buffers of
+    // the region be reused from one frame to the next
+    region[0] -= region[0] % REGION_GRID;
+    region[1] -= region[1] % REGION_GRID;
+    region[2] = Math.min(width, region[2] + (REGION_GRID - region[2] % REGION_GRID) % REGION_GRID);
+    region[3] = Math.min(height, region[3] + (REGION_GRID - region[3] % REGION_GRID) % REGION_GRID);
+    if (region[2] - region[0] < 1 || region[3] - region[1] < 1 || (region[2] - region[0]) * (region[3] - region[1]) > width * height * 3 / 4)
+    {
+      // Not worth cropping
+      m_region = null;
+      return;
+    }
+    m_region = region;
+  }
+  
+  /**
+   * Attempts to decode an image with the current settings
+   * @param source The grayscale image to read
+   * @param allow_guess Whether other thresholds may be tried if
+   *   the first one fails (provided that guessing is enabled)
+   * @return The decoded result, or null if no code could be read
+   */
+  protected Result decode(LuminanceSource source, boolean allow_guess)
+  {
+    Result result = null;
+    if (!m_useThresholdBinarizer)
+    {
+      return decode(new GlobalHistogramBinarizer(source));
+    }
+    int threshold = m_binarizationThreshold;
+    int min = THRESHOLD_MIN, max = THRESHOLD_MAX, step = THRESHOLD_INCREMENT;
+    ThresholdStrategy strategy = m_thresholdStrategy;
+    if (m_thresholdTracker != null)
+    {
+      // The tracker defers to its own fallback when it has no estimate
+      strategy = m_thresholdTracker;
+    }
+    if (strategy != null)
+    {
+      int predicted = strategy.getThreshold(source);
+      if (predicted > 0)
+      {
+        // Start from the predicted value, and only sweep a narrow
+        // interval around it if it fails
+        threshold = predicted;
+        min = Math.max(1, predicted - PREDICTION_WIDTH);
+        max = Math.min(255, predicted + PREDICTION_WIDTH);
+        step = PREDICTION_INCREMENT;
+      }
+    }
+    result = readCode(source, threshold);
+    if (result != null)
+    {
+      m_binarizationThreshold = threshold;
+    }
+    else if (m_guessThreshold && allow_guess)
+    {
+      // No success in decoding: try with other threshold values
+      ThresholdGuesser guess = new ThresholdGuesser(this);
+      guess.setParallel(m_parallelGuess);
+      guess.addImage(source);
+      int suggested_threshold = guess.guessThreshold(min, max, step, threshold);
+      if (suggested_threshold > 0)
+      {
+        // The guesser suggests a new value: try to decode again
+        m_binarizationThreshold = suggested_threshold;
+        threshold = suggested_threshold;
+        result = readCode(source, m_binarizationThreshold);
+      }
+    }
+    if (m_thresholdTracker != null && (result != null || allow_guess))
+    {
+      trackThreshold(source, threshold, result != null);
+    }
+    return result;
+  }
+  
+  /**
+   * Reports the outcome of decoding a frame to the threshold tracker,
+   * and probes one bound of the tracker's window if one is due
+   * @param source The frame
+   * @param threshold The last threshold tried on the frame
+   * @param success Whether the frame was decoded with this threshold
+   */
+  protected void trackThreshold(LuminanceSource source, int threshold, boolean success)
+  {
+    if (!success)
+    {
+      m_thresholdTracker.reportFailure();
+      return;
+    }
+    m_thresholdTracker.reportSuccess(threshold);
+    int probe = m_thresholdTracker.getProbe();
+    if (probe > 0)
+    {
+      m_thresholdTracker.reportProbe(probe, readCode(source, probe) != null);
+    }
+  }
+  
+  /*package*/ Result readCode(BufferedImage img, int threshold)
+  {
+    return readCode(getLuminanceSource(img), threshold);
+  }
+  
+  /**
+   * Attempts to decode a code using the threshold binarizer
+   * @param source The grayscale image to read from
+   * @param threshold The binarization threshold to use
+   * @return The decoded result, or null if no code could be read
+   */
+  /*package*/ Result readCode(LuminanceSource source, int threshold)
+  {
+    if (m_reuseBuffers)
+    {
+      return decode(new ThresholdBinarizer(source, threshold, m_readers.get().m_context));
+    }
+    return decode(new ThresholdBinarizer(source, threshold));
+  }
+  
+  /**
+   * Decodes a binarized image with the current thread's ZXing reader
+   * @param bin The binarizer
+   * @return The decoded result, or null if no code could be read
+   */
+  protected Result decode(Binarizer bin)
+  {
     BinaryBitmap binaryBitmap = new BinaryBitmap(bin);
-    Map<DecodeHintType, Object> hints = setupHints();
     try
     {
-      result = s_reader.decode(binaryBitmap, hints);
+      return getThreadReader().decodeWithState(binaryBitmap);
     }
     catch (NotFoundException e)
     {
-      result = null;
+      return null;
     }
-    return result;
+  }
+  
+  /**
+   * Gets the ZXing reader of the current thread, making sure it uses
+   * the current hints
+   * @return The reader
+   */
+  protected MultiFormatReader getThreadReader()
+  {
+    ThreadReader tr = m_readers.get();
+    Map<DecodeHintType, Object> hints = m_hints;
+    if (tr.m_hints != hints)
+    {
+      // Configuration changed since this thread last decoded something
+      tr.m_reader.setHints(hints);
+      tr.m_hints = hints;
+    }
+    return tr.m_reader;
+  }
+  
+  /**
+   * Gets the reader of the current thread used to find multiple codes
+   * in an image, making sure it uses the current hints
+   * @return The reader
+   */
+  protected MultipleBarcodeReader getThreadMultiReader()
+  {
+    ThreadReader tr = m_readers.get();
+    if (tr.m_multiReader == null || tr.m_multiFormat != m_format)
+    {
+      if (m_format == BarcodeFormat.QR_CODE)
+      {
+        // Looks for all the finder patterns at once
+        tr.m_multiReader = new QRCodeMultiReader();
+      }
+      else
+      {
+        // Decodes a code, then looks again in the rest of the image;
+        // the hints are given to the thread's reader on every call
+        tr.m_multiReader = new GenericMultipleBarcodeReader(getThreadReader());
+      }
+      tr.m_multiFormat = m_format;
+    }
+    return tr.m_multiReader;
+  }
+  
+  /**
+   * Converts an image to grayscale. The resulting luminance source
+   * keeps its values in a single array, which is handed out without
+   * copying; it can hence be binarized many times at little cost.
+   * BGR and gray images are read directly from their raster by a
+   * {@link RasterLuminanceSource}.
+   * @param img The image to convert
+   * @return The luminance source
+   */
+  public static LuminanceSource getLuminanceSource(BufferedImage img)
+  {
+    if (RasterLuminanceSource.isSupported(img))
+    {
+      return new RasterLuminanceSource(img);
+    }
+    int width = img.getWidth();
+    int height = img.getHeight();
+    byte[] luminances = new BufferedImageLuminanceSource(img).getMatrix();
+    return new PlanarYUVLuminanceSource(luminances, width, height, 0, 0, width, height, false);
   }
 
   /**
    * Setup the array of "hints" (i.e. parameters) used by the ZXing
    * decoder to decode images. This is only used internally and does not
-   * need to be called directly from outside the class.
+   * need to be called directly from outside the class; it is called
+   * whenever a setting that affects the hints is changed.
    * @return The map of hints
    */
   protected Map<DecodeHintType, Object> setupHints()
@@ -210,7 +1113,7 @@ public class ZXingReader
       // Do nothing
       break;
     }
-    return hints;
+    return Collections.unmodifiableMap(hints);
   }
   
   /**
@@ -222,10 +1125,29 @@ public class ZXingReader
   public void setPureCode(boolean b)
   {
     m_pureCode = b;
+    m_hints = setupHints();
   }
   
   public void setBarcodeFormat(BarcodeFormat format)
   {
     m_format = format;
+    m_hints = setupHints();
+  }
+  
+  /**
+   * The ZXing reader of a thread, along with the hints it was last
+   * configured with and the buffers the thread reuses
+   */
+  protected static class ThreadReader
+  {
+    protected final MultiFormatReader m_reader = new MultiFormatReader();
+    
+    protected final DecodeContext m_context = new DecodeContext();
+    
+    protected MultipleBarcodeReader m_multiReader = null;
+    
+    protected BarcodeFormat m_multiFormat = null;
+    
+    protected Map<DecodeHintType, Object> m_hints = null;
   }
 }
@@ -18,15 +18,15 @@
 package ca.uqac.lif.qr;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import javax.imageio.ImageIO;
-
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.EncodeHintType;
 import com.google.zxing.MultiFormatWriter;
@@ -52,6 +52,12 @@ public class ZXingWriter
    */
   protected int m_codeSize = 300;
   
+  /**
+   * The number of codes left out of a grid because they were larger
+   * than their cell
+   */
+  protected int m_oversizedCodes = 0;
+  
   /**
    * A multi-format writer of the ZXing library, whose static method "write"
    * is called to encode QR codes. It is instantiated only once here to
@@ -74,43 +80,232 @@ public class ZXingWriter
   }
   
   /**
-   * Write a barcode.
+   * Write a barcode. The modules of the code are written directly into
+   * a 1-bit black and white image, scaled by the largest whole factor
+   * that fits in the code size.
    * @param data The character data that the code will contain
    * @return An image containig the code
    */
   public BufferedImage getCode(String data)
   {
-    BufferedImage img = null;
-    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    return getCode(data, null);
+  }
+  
+  /**
+   * Write a barcode into an existing image, if possible. This avoids
+   * allocating a new image for every code when the previous ones are
+   * no longer used.
+   * @param data The character data that the code will contain
+   * @param img The image to write the code into. It is used if it is a
+   *   <code>TYPE_BYTE_BINARY</code> or <code>TYPE_BYTE_GRAY</code> image
+   *   of the size of the code; otherwise, or if it is null, a new image
+   *   is created.
+   * @return An image containig the code
+   */
+  public BufferedImage getCode(String data, BufferedImage img)
+  {
+    BitMatrix matrix = null;
     try
     {
-      writeCode(bos, data, m_codeSize, m_codeSize);
-      ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
-      img = ImageIO.read(bis);
+      matrix = encodeModules(data);
     }
     catch (WriterException e)
     {
       e.printStackTrace();
       return null;
     }
-    catch (IOException e)
+    int size = Math.max(m_codeSize, Math.max(matrix.getWidth(), matrix.getHeight()));
+    if (img == null || img.getWidth() != size || img.getHeight() != size || (img.getType() != BufferedImage.TYPE_BYTE_BINARY && img.getType() != BufferedImage.TYPE_BYTE_GRAY))
     {
-      e.printStackTrace();
-      return null;
+      img = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_BINARY);
     }
+    renderMatrix(matrix, img, 0, 0, size);
     return img;
   }
   
   /**
-   * Write a QR code.
-   * @param out The output stream where the image data will be written
+   * Write several barcodes side by side in a single image. The codes
+   * are laid out row by row in a grid, each in a square cell of the
+   * current code size; a reader finds them in the same order by
+   * scanning the image from left to right and from top to bottom.
+   * @param data The character data of each code. Null elements leave
+   *   their cell empty.
+   * @param columns The number of codes in each row of the grid
+   * @return An image containing the codes
+   */
+  public BufferedImage getCodeGrid(List<String> data, int columns)
+  {
+    return getCodeGrid(data, columns, null);
+  }
+  
+  /**
+   * Write several barcodes side by side into an existing image, if
+   * possible
+   * @param data The character data of each code. Null elements leave
+   *   their cell empty, as do codes that need more pixels than the code
+   *   size; a warning is printed the first time this happens, and such
+   *   codes are counted by {@link #getOversizedCodeCount()}.
+   * @param columns The number of codes in each row of the grid
+   * @param grid The image to write the codes into. It is used if it is
+   *   a <code>TYPE_BYTE_GRAY</code> image of the size of the grid;
+   *   otherwise, or if it is null, a new image is created.
+   * @return An image containing the codes
+   */
+  public BufferedImage getCodeGrid(List<String> data, int columns, BufferedImage grid)
+  {
+    int rows = Math.max(1, (data.size() + columns - 1) / columns);
+    if (grid == null || grid.getWidth() != columns * m_codeSize || grid.getHeight() != rows * m_codeSize || grid.getType() != BufferedImage.TYPE_BYTE_GRAY)
+    {
+      grid = new BufferedImage(columns * m_codeSize, rows * m_codeSize, BufferedImage.TYPE_BYTE_GRAY);
+    }
+    // Start from a white image: empty cells stay white
+    Arrays.fill(((DataBufferByte) grid.getRaster().getDataBuffer()).getData(), (byte) 0xff);
+    for (int i = 0; i < data.size(); i++)
+    {
+      String contents = data.get(i);
+      if (contents == null)
+      {
+        continue;
+      }
+      BitMatrix matrix = null;
+      try
+      {
+        matrix = encodeModules(contents);
+      }
+      catch (WriterException e)
+      {
+        e.printStackTrace();
+        continue;
+      }
+      if (matrix.getWidth() > m_codeSize || matrix.getHeight() > m_codeSize)
+      {
+        // The code does not fit in its cell: leave the cell empty
+        if (m_oversizedCodes == 0)
+        {
+          System.err.println("WARNING: a code of " + matrix.getWidth() + "x" + matrix.getHeight() + " modules does not fit in a cell of " + m_codeSize + " pixels; such codes are left out of the grid. Use a larger code size.");
+        }
+        m_oversizedCodes++;
+        continue;
+      }
+      renderMatrix(matrix, grid, (i % columns) * m_codeSize, (i / columns) * m_codeSize, m_codeSize);
+    }
+    return grid;
+  }
+  
+  /**
+   * Gets the number of codes left out of grids so far because they were
+   * larger than their cell
+   * @return The number of codes
+   */
+  public int getOversizedCodeCount()
+  {
+    return m_oversizedCodes;
+  }
+  
+  /**
+   * Encodes data into a matrix of modules. QR codes are encoded with one
+   * pixel per module, leaving the scaling to
+   * {@link #renderMatrix(BitMatrix, BufferedImage, int, int, int)};
+   * other formats are encoded at the code size, since some of them
+   * (such as linear barcodes) cannot be scaled the same way in both
+   * directions.
    * @param data The character data that the code will contain
-   * @param width The width of the resulting image
-   * @param height The width of the resulting image
-   * @throws WriterException
-   * @throws IOException
+   * @return The matrix
+   * @throws WriterException If the data cannot be encoded
    */
-  protected void writeCode(OutputStream out, String data, int width, int height) throws WriterException, IOException
+  protected BitMatrix encodeModules(String data) throws WriterException
+  {
+    if (m_format == BarcodeFormat.QR_CODE)
+    {
+      return s_writer.encode(data, m_format, 0, 0, getHints());
+    }
+    return s_writer.encode(data, m_format, m_codeSize, m_codeSize, getHints());
+  }
+  
+  /**
+   * Writes a matrix of modules into a square region of an image,
+   * scaled by the largest whole factor that fits in the region and
+   * centered in it. Every pixel of the region is written, so the image
+   * does not need to be cleared first.
+   * @param matrix The matrix
+   * @param img The image, either <code>TYPE_BYTE_BINARY</code> with one
+   *   bit per pixel, or <code>TYPE_BYTE_GRAY</code>
+   * @param x The left coordinate of the region
+   * @param y The top coordinate of the region
+   * @param size The width and height of the region, which must be at
+   *   least those of the matrix
+   */
+  protected static void renderMatrix(BitMatrix matrix, BufferedImage img, int x, int y, int size)
+  {
+    int matrix_width = matrix.getWidth();
+    int matrix_height = matrix.getHeight();
+    int multiple = Math.max(1, Math.min(size / matrix_width, size / matrix_height));
+    int left = (size - matrix_width * multiple) / 2;
+    int top = (size - matrix_height * multiple) / 2;
+    byte[] pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+    boolean binary = img.getType() == BufferedImage.TYPE_BYTE_BINARY;
+    int stride = 0;
+    if (binary)
+    {
+      stride = (img.getWidth() + 7) / 8;
+    }
+    else
+    {
+      stride = ((ComponentSampleModel) img.getSampleModel()).getScanlineStride();
+    }
+    // Rows can be copied as whole bytes if the region starts on a byte
+    boolean aligned = !binary || x % 8 == 0;
+    int row_bytes = binary ? (size + 7) / 8 : size;
+    if (binary && x + size < img.getWidth() && size % 8 != 0)
+    {
+      // The last byte of a row is shared with the next region
+      aligned = false;
+    }
+    for (int row = 0; row < size; row++)
+    {
+      int offset = (y + row) * stride;
+      int module_row = row - top;
+      boolean repeat = module_row > 0 && module_row < matrix_height * multiple && module_row % multiple != 0;
+      boolean blank_repeat = row > 0 && (module_row < 0 || module_row > matrix_height * multiple);
+      if (aligned && (repeat || blank_repeat))
+      {
+        // Same modules as the row above
+        int from = binary ? offset - stride + x / 8 : offset - stride + x;
+        System.arraycopy(pixels, from, pixels, from + stride, row_bytes);
+        continue;
+      }
+      int my = module_row >= 0 && module_row < matrix_height * multiple ? module_row / multiple : -1;
+      for (int col = 0; col < size; col++)
+      {
+        int module_col = col - left;
+        boolean black = my >= 0 && module_col >= 0 && module_col < matrix_width * multiple && matrix.get(module_col / multiple, my);
+        if (binary)
+        {
+          int bit = x + col;
+          int index = offset + bit / 8;
+          int mask = 0x80 >> (bit % 8);
+          if (black)
+          {
+            pixels[index] &= ~mask;
+          }
+          else
+          {
+            pixels[index] |= mask;
+          }
+        }
+        else
+        {
+          pixels[offset + x + col] = black ? 0 : (byte) 0xff;
+        }
+      }
+    }
+  }
+  
+  /**
+   * Gets the hints passed to the encoder for the current format
+   * @return The hints
+   */
+  protected Map<EncodeHintType, Object> getHints()
   {
     // Depending on the encoding used, some encoders need to have "hints"
     Map<EncodeHintType, Object> hints = new HashMap<EncodeHintType, Object>();
@@ -128,7 +323,21 @@ public class ZXingWriter
       break;
     }
     //hints.put(EncodeHintType.MARGIN, 4);
-    BitMatrix matrix = s_writer.encode(data, m_format, m_codeSize, m_codeSize, hints);
+    return hints;
+  }
+  
+  /**
+   * Write a QR code as a PNG image.
+   * @param out The output stream where the image data will be written
+   * @param data The character data that the code will contain
+   * @param width The width of the resulting image
+   * @param height The width of the resulting image
+   * @throws WriterException
+   * @throws IOException
+   */
+  protected void writeCode(OutputStream out, String data, int width, int height) throws WriterException, IOException
+  {
+    BitMatrix matrix = s_writer.encode(data, m_format, width, height, getHints());
     MatrixToImageWriter.writeToStream(matrix, "png", out);
   }
   
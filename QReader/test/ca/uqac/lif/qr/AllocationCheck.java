@@ -0,0 +1,161 @@
+/*
+  QR Code manipulation and event processing
+  Copyright (C) 2008-2013 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.qr;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks that decoding frames with reused buffers allocates almost no
+ * memory once the buffers exist. A 1080p gray frame holding a code is
+ * decoded a number of times with a {@link ZXingReader} using the
+ * threshold binarizer, with and without reused buffers, and the number of bytes allocated by the thread is measured with
+ * <code>com.sun.management.ThreadMXBean</code>.
+ * <p>
+ * The check fails (with exit code 1) if, with reused buffers:
+ * <ul>
+ * <li>a frame allocates more than a small fraction of the size of the
+ *   frame itself, or</li>
+ * <li>the allocation per frame grows between the first and the second
+ *   half of the run, which would mean that buffers are not actually
+ *   reused.</li>
+ * </ul>
+ * What remains is allocated by ZXing's detector and decoder (finder
+ * patterns, the decoded bytes and string), whose size depends on the
+ * code and not on the frame.
+ * Run it with <code>ant check</code>.
+ * @author sylvain
+ *
+ */
+public class AllocationCheck
+{
+  /**
+   * The number of frames decoded before measuring, so that buffers
+   * are allocated and the code is compiled
+   */
+  protected static final int WARMUP_FRAMES = 50;
+
+  /**
+   * The number of frames measured
+   */
+  protected static final int MEASURED_FRAMES = 200;
+
+  /**
+   * The largest allocation per frame accepted with reused buffers, as a
+   * fraction of the number of pixels of the frame
+   */
+  protected static final double MAX_FRACTION = 0.05;
+
+  public static void main(String[] args)
+  {
+    BufferedImage frame = getFrame(1920, 1080);
+    long pixels = (long) frame.getWidth() * frame.getHeight();
+    long[] fresh = measure(frame, false);
+    long[] reused = measure(frame, true);
+    System.out.println("Bytes allocated per frame (first half / second half):");
+    System.out.println("  New buffers:    " + fresh[0] + " / " + fresh[1]);
+    System.out.println("  Reused buffers: " + reused[0] + " / " + reused[1]);
+    boolean ok = true;
+    long limit = (long) (pixels * MAX_FRACTION);
+    if (reused[0] > limit || reused[1] > limit)
+    {
+      System.out.println("FAIL: more than " + limit + " bytes allocated per frame with reused buffers");
+      ok = false;
+    }
+    // Allow some noise from the JIT and the measurement itself
+    if (reused[1] > reused[0] + reused[0] / 4 + 1024)
+    {
+      System.out.println("FAIL: allocation per frame grows with reused buffers");
+      ok = false;
+    }
+    if (!ok)
+    {
+      System.exit(1);
+    }
+    System.out.println("OK");
+  }
+
+  /**
+   * Decodes a frame repeatedly and measures the bytes allocated
+   * @param frame The frame
+   * @param reuse Whether the reader reuses its buffers
+   * @return The average number of bytes allocated per frame, in the
+   *   first and in the second half of the measured frames
+   */
+  protected static long[] measure(BufferedImage frame, boolean reuse)
+  {
+    ZXingReader reader = new ZXingReader();
+    // Buffers are only reused by the threshold binarizer
+    reader.useThresholdBinarizer(true);
+    reader.setBinarizationThreshold(128);
+    reader.setReuseBuffers(reuse);
+    for (int i = 0; i < WARMUP_FRAMES; i++)
+    {
+      checkDecoded(reader.readCode(frame));
+    }
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long[] averages = new long[2];
+    for (int half = 0; half < 2; half++)
+    {
+      long before = bean.getThreadAllocatedBytes(thread);
+      for (int i = 0; i < MEASURED_FRAMES / 2; i++)
+      {
+        checkDecoded(reader.readCode(frame));
+      }
+      long after = bean.getThreadAllocatedBytes(thread);
+      averages[half] = (after - before) / (MEASURED_FRAMES / 2);
+    }
+    return averages;
+  }
+
+  /**
+   * Stops the check if a frame was not decoded, since the measure
+   * would then be meaningless
+   * @param contents The contents read from the frame
+   */
+  protected static void checkDecoded(String contents)
+  {
+    if (contents == null)
+    {
+      System.out.println("FAIL: the test frame could not be decoded");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Creates a gray frame with a code in it
+   * @param width The width of the frame
+   * @param height The height of the frame
+   * @return The frame
+   */
+  protected static BufferedImage getFrame(int width, int height)
+  {
+    ZXingWriter writer = new ZXingWriter();
+    writer.setCodeSize(600);
+    BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+    Graphics2D g = frame.createGraphics();
+    g.setColor(Color.WHITE);
+    g.fillRect(0, 0, width, height);
+    g.drawImage(writer.getCode("Allocation check: the same payload in every frame"), (width - 600) / 2, (height - 600) / 2, null);
+    g.dispose();
+    return frame;
+  }
+}